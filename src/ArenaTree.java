@@ -0,0 +1,632 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Arena backed tree: a compact alternative to {@link Tree} / {@link TreeNode}
+ * for big ASTs.
+ * <p>
+ * Nodes are plain int handles (0..n-1), the links between nodes
+ * (parent, first child, last child, next sibling) are stored in
+ * primitive arrays, and the payload of a node is an index into a
+ * pool of distinct values. A leaf costs 5 ints instead of an object
+ * header + a boxed value + a parent reference + an ArrayList.
+ * <p>
+ * See {@link IntArenaTree} for a variant storing int payloads directly.
+ */
+public class ArenaTree<T> extends AbstractArenaTree {
+
+	private int payload[];			// node -> index in values
+	private Object values[];		// pool of distinct payloads
+	private int valuesCount;
+	private Map<T, Integer> valueIndex = new HashMap<T, Integer>();
+
+	public static void main(String[] args) {
+		System.out.println("Test ArenaTree");
+
+		ArenaTree<String> ex = new ArenaTree<String>();
+		int eq = ex.setRoot("=");
+		int plus = ex.addChild(eq, "+");
+		ex.addChild(plus, "2");
+		int mul = ex.addChild(plus, "*");
+		ex.addChild(mul, "3");
+		ex.addChild(mul, "4");
+		System.out.println(ex.prettyPrint());
+		System.out.println("Nodes : " + ex.nodesCount());
+
+		System.out.print("Prefix walk  : ");
+		for(int n : ex.getTraversalList(Tree.OrderTraversal.PREFIX))
+			System.out.print(ex.toString(n) + " ");
+		System.out.println();
+		System.out.print("Postfix walk : ");
+		for(int n : ex.getTraversalList(Tree.OrderTraversal.POSTFIX))
+			System.out.print(ex.toString(n) + " ");
+		System.out.println();
+
+		//compare the heap used by a big tree in both representations
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String labels[] = { "+", "-", "*", "/", "n", "1" };
+
+		long before = usedMemory();
+		long t0 = System.nanoTime();
+		Tree<String> tree = new Tree<String>("root");
+		TreeNode<String> nodes[] = buildNodes(tree.getRoot(), count, labels);
+		long t1 = System.nanoTime();
+		long treeMem = usedMemory() - before;
+		System.out.println(String.format("Tree      : %d nodes, %6d ms, ~%d bytes/node",
+				tree.nodesCount(), (t1 - t0) / 1000000, treeMem / count));
+		nodes = null;
+		tree = null;
+
+		before = usedMemory();
+		t0 = System.nanoTime();
+		ArenaTree<String> arena = new ArenaTree<String>(count);
+		int root = arena.setRoot("root");
+		for(int i = 1; i < count; i++)
+			arena.addChild((i - 1) / 4 + root, labels[i % labels.length]);
+		t1 = System.nanoTime();
+		long arenaMem = usedMemory() - before;
+		System.out.println(String.format("ArenaTree : %d nodes, %6d ms, ~%d bytes/node",
+				arena.nodesCount(), (t1 - t0) / 1000000, arenaMem / count));
+
+		t0 = System.nanoTime();
+		int walked = arena.getTraversalList(Tree.OrderTraversal.POSTFIX).length;
+		t1 = System.nanoTime();
+		System.out.println(String.format("postfix walk of %d nodes : %d ms", walked, (t1 - t0) / 1000000));
+	}
+
+	/**
+	 * Build a 4-ary TreeNode tree with the same shape as the one built
+	 * for the arena in main()
+	 */
+	@SuppressWarnings("unchecked")
+	private static TreeNode<String>[] buildNodes(TreeNode<String> root, int count, String labels[]) {
+		TreeNode<String> nodes[] = (TreeNode<String>[]) new TreeNode<?>[count];
+		nodes[0] = root;
+		for(int i = 1; i < count; i++){
+			nodes[i] = new TreeNode<String>(labels[i % labels.length]);
+			nodes[(i - 1) / 4].addChild(nodes[i]);
+		}
+		return nodes;
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	ArenaTree(){
+		this(16);
+	}
+
+	/**
+	 * @param capacity the expected number of nodes
+	 */
+	ArenaTree(int capacity){
+		super(capacity);
+		payload = new int[Math.max(capacity, 1)];
+		values = new Object[16];
+	}
+
+	/**
+	 * Build an arena copy of a {@link Tree}
+	 * @param tree the tree to copy
+	 * @return an equivalent ArenaTree
+	 */
+	static <T> ArenaTree<T> of(Tree<T> tree) {
+		//not sized by tree.nodesCount(), which recurses down the TreeNodes
+		ArenaTree<T> arena = new ArenaTree<T>();
+		if(!tree.isEmpty())
+			arena.copy(tree.getRoot(), arena.setRoot(tree.getRoot().getData()));
+		return arena;
+	}
+
+	/**
+	 * Copy the children of tn under node with an explicit stack, in prefix
+	 * order like a recursive copy : safe for deep trees
+	 */
+	private void copy(TreeNode<T> tn, int node) {
+		List<TreeNode<T>> stack = new ArrayList<TreeNode<T>>();
+		int parents[] = new int[16];		// arena parent of each stacked node
+		parents = push(stack, parents, tn, node);
+		while(!stack.isEmpty()){
+			int top = stack.size() - 1;
+			TreeNode<T> child = stack.remove(top);
+			parents = push(stack, parents, child, addChild(parents[top], child.getData()));
+		}
+	}
+
+	/**
+	 * push the children of tn last first, so that the first one pops first
+	 * @return parents, grown if needed
+	 */
+	private int[] push(List<TreeNode<T>> stack, int parents[], TreeNode<T> tn, int node) {
+		List<TreeNode<T>> children = tn.getChildren();
+		for(int i = children.size() - 1; i >= 0; i--){
+			if(stack.size() == parents.length)
+				parents = Arrays.copyOf(parents, parents.length * 2);
+			parents[stack.size()] = node;
+			stack.add(children.get(i));
+		}
+		return parents;
+	}
+
+	/**
+	 * Convert the arena back to a linked {@link Tree}
+	 */
+	Tree<T> toTree() {
+		if(isEmpty())
+			return new Tree<T>();
+		return new Tree<T>(toTreeNode(getRoot()));
+	}
+
+	/**
+	 * a parent is before its children in prefix order, and the siblings
+	 * are in order : each node is appended to its parent when reached
+	 */
+	private TreeNode<T> toTreeNode(int node) {
+		Map<Integer, TreeNode<T>> made = new HashMap<Integer, TreeNode<T>>();
+		for(int n : subtree(node, Tree.OrderTraversal.PREFIX)){
+			TreeNode<T> tn = new TreeNode<T>(getData(n));
+			made.put(n, tn);
+			if(n != node)
+				made.get(getParent(n)).addChild(tn);
+		}
+		return made.get(node);
+	}
+
+	/**
+	 * Create the root node, the arena must be empty
+	 * @param data the value of the root
+	 * @return the root node handle
+	 */
+	int setRoot(T data) {
+		int node = newRoot();
+		payload[node] = intern(data);
+		return node;
+	}
+
+	/**
+	 * Append a new last child to a node
+	 * @param parent the parent node handle
+	 * @param data the value of the new node
+	 * @return the new node handle
+	 */
+	int addChild(int parent, T data) {
+		int node = newChild(parent);
+		payload[node] = intern(data);
+		return node;
+	}
+
+	/**
+	 * get the value of a node
+	 */
+	@SuppressWarnings("unchecked")
+	T getData(int node) {
+		return (T) values[payload[node]];
+	}
+
+	/**
+	 * setter for the value of a node
+	 */
+	void setData(int node, T val) {
+		payload[node] = intern(val);
+	}
+
+	/**
+	 * @return the number of distinct payloads in the arena
+	 */
+	int distinctValues() {
+		return valuesCount;
+	}
+
+	/**
+	 * Get the index of a value in the pool, adding it if needed
+	 */
+	private int intern(T val) {
+		Integer idx = valueIndex.get(val);
+		if(idx != null)
+			return idx;
+		if(valuesCount == values.length)
+			values = Arrays.copyOf(values, valuesCount * 2);
+		values[valuesCount] = val;
+		valueIndex.put(val, valuesCount);
+		return valuesCount++;
+	}
+
+	@Override
+	protected void grow(int capacity) {
+		super.grow(capacity);
+		payload = Arrays.copyOf(payload, capacity);
+	}
+
+	@Override
+	public String toString(int node) {
+		return '(' + String.valueOf(getData(node)) + ')';
+	}
+}
+
+/**
+ * Arena tree with an int payload per node (e.g. a token or an opcode),
+ * stored inline without any boxing.
+ */
+class IntArenaTree extends AbstractArenaTree {
+
+	private int data[];
+
+	IntArenaTree(){
+		this(16);
+	}
+
+	IntArenaTree(int capacity){
+		super(capacity);
+		data = new int[Math.max(capacity, 1)];
+	}
+
+	int setRoot(int val) {
+		int node = newRoot();
+		data[node] = val;
+		return node;
+	}
+
+	int addChild(int parent, int val) {
+		int node = newChild(parent);
+		data[node] = val;
+		return node;
+	}
+
+	int getData(int node) {
+		return data[node];
+	}
+
+	void setData(int node, int val) {
+		data[node] = val;
+	}
+
+	@Override
+	protected void grow(int capacity) {
+		super.grow(capacity);
+		data = Arrays.copyOf(data, capacity);
+	}
+
+	@Override
+	public String toString(int node) {
+		return "(" + data[node] + ")";
+	}
+}
+
+/**
+ * Structure shared by the arena trees: the links between nodes and the
+ * traversal / rendering code. Subclasses only store the payloads.
+ * <p>
+ * Traversals use an explicit stack so that degenerate (very deep) trees
+ * do not overflow the Java stack.
+ */
+abstract class AbstractArenaTree {
+	static final int NONE = -1;
+
+	private int parent[];
+	private int firstChild[];
+	private int lastChild[];
+	private int nextSibling[];
+	private int size;		// allocated nodes
+	private int live;		// nodes reachable from the root
+	private int root = NONE;
+
+	AbstractArenaTree(int capacity){
+		capacity = Math.max(capacity, 1);
+		parent = new int[capacity];
+		firstChild = new int[capacity];
+		lastChild = new int[capacity];
+		nextSibling = new int[capacity];
+	}
+
+	/**
+	 * Enlarge the node arrays, subclasses must enlarge their payload too
+	 * @param capacity the new number of slots
+	 */
+	protected void grow(int capacity) {
+		parent = Arrays.copyOf(parent, capacity);
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		lastChild = Arrays.copyOf(lastChild, capacity);
+		nextSibling = Arrays.copyOf(nextSibling, capacity);
+	}
+
+	/**
+	 * Text of a single node, as in {@link TreeNode#toString()}
+	 */
+	public abstract String toString(int node);
+
+	private int allocate() {
+		if(size == parent.length)
+			grow(size * 2);
+		int node = size++;
+		parent[node] = NONE;
+		firstChild[node] = NONE;
+		lastChild[node] = NONE;
+		nextSibling[node] = NONE;
+		live++;
+		return node;
+	}
+
+	protected int newRoot() {
+		if(root != NONE)
+			throw new IllegalStateException("the tree already has a root");
+		root = allocate();
+		return root;
+	}
+
+	protected int newChild(int p) {
+		int node = allocate();
+		parent[node] = p;
+		if(firstChild[p] == NONE)
+			firstChild[p] = node;
+		else
+			nextSibling[lastChild[p]] = node;
+		lastChild[p] = node;
+		return node;
+	}
+
+	public boolean isEmpty() {
+		return root == NONE;
+	}
+
+	public int getRoot() {
+		return root;
+	}
+
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	public int getFirstChild(int node) {
+		return firstChild[node];
+	}
+
+	public int getNextSibling(int node) {
+		return nextSibling[node];
+	}
+
+	public int getChildCount(int node) {
+		int count = 0;
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c])
+			count++;
+		return count;
+	}
+
+	public int getChildAt(int node, int index) {
+		int c = firstChild[node];
+		for(int i = 0; i < index && c != NONE; i++)
+			c = nextSibling[c];
+		if(c == NONE)
+			throw new IndexOutOfBoundsException("child " + index + " of node " + node);
+		return c;
+	}
+
+	/**
+	 * Unlink a child and its subtree. The slots are not reused.
+	 * @param node the parent node
+	 * @param index of the child to remove
+	 * @return the removed child handle
+	 */
+	public int removeChildAt(int node, int index) {
+		int prev = NONE;
+		int c = firstChild[node];
+		for(int i = 0; i < index && c != NONE; i++){
+			prev = c;
+			c = nextSibling[c];
+		}
+		if(c == NONE)
+			throw new IndexOutOfBoundsException("child " + index + " of node " + node);
+		if(prev == NONE)
+			firstChild[node] = nextSibling[c];
+		else
+			nextSibling[prev] = nextSibling[c];
+		if(lastChild[node] == c)
+			lastChild[node] = prev;
+		live -= getNumberOfNodes(c);
+		parent[c] = NONE;
+		nextSibling[c] = NONE;
+		return c;
+	}
+
+	public long nodesCount() {
+		return isEmpty() ? 0 : live;
+	}
+
+	/**
+	 * Get the number of nodes in the sub tree of a node
+	 */
+	public int getNumberOfNodes(int node) {
+		return subtree(node, Tree.OrderTraversal.PREFIX).length;
+	}
+
+	/**
+	 * get the depth of a node: the number of underlying levels
+	 */
+	public int getDepth(int node) {
+		int depth[] = new int[size];
+		int max = 0;
+		//nodes are visited in prefix order, so a parent is always set before its children
+		for(int n : subtree(node, Tree.OrderTraversal.PREFIX)){
+			depth[n] = (n == node) ? 1 : depth[parent[n]] + 1;
+			if(depth[n] > max)
+				max = depth[n];
+		}
+		return max;
+	}
+
+	/**
+	 * @return the node handles of the whole tree in the given order
+	 */
+	public int[] getTraversalList(Tree.OrderTraversal order) {
+		if(isEmpty())
+			return new int[0];
+		return subtree(root, order);
+	}
+
+	/**
+	 * Iterative walk of a sub tree
+	 */
+	int[] subtree(int node, Tree.OrderTraversal order) {
+		int out[] = new int[16];
+		int count = 0;
+		int stack[] = new int[16];
+		int sp = 0;
+		stack[sp++] = node;
+		while(sp > 0){
+			int n = stack[--sp];
+			if(count == out.length)
+				out = Arrays.copyOf(out, count * 2);
+			out[count++] = n;
+			int base = sp;
+			for(int c = firstChild[n]; c != NONE; c = nextSibling[c]){
+				if(sp == stack.length)
+					stack = Arrays.copyOf(stack, sp * 2);
+				stack[sp++] = c;
+			}
+			if(order == Tree.OrderTraversal.PREFIX){
+				//children were pushed first to last: reverse them so the first pops first
+				for(int i = base, j = sp - 1; i < j; i++, j--){
+					int tmp = stack[i];
+					stack[i] = stack[j];
+					stack[j] = tmp;
+				}
+			}
+		}
+		out = Arrays.copyOf(out, count);
+		if(order == Tree.OrderTraversal.POSTFIX){
+			//root, last child first... reversed is children first, first child first
+			for(int i = 0, j = count - 1; i < j; i++, j--){
+				int tmp = out[i];
+				out[i] = out[j];
+				out[j] = tmp;
+			}
+		}
+		return out;
+	}
+
+	public String prettyPrint() {
+		if (isEmpty())
+			return "";
+		StringBuilder sb = new StringBuilder();
+		for(String s : toPrettifiedStrings(root)){
+			sb.append(s);
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Same rendering as {@link TreeNode#toPrettifiedStrings()},
+	 * with the widths and depths computed once for the whole sub tree
+	 */
+	public String[] toPrettifiedStrings(int node) {
+		int width[] = new int[size];
+		int depth[] = new int[size];
+		int post[] = subtree(node, Tree.OrderTraversal.POSTFIX);
+		for(int n : post){
+			int c = 0, d = 0, count = 0;
+			for(int ch = firstChild[n]; ch != NONE; ch = nextSibling[ch]){
+				c += width[ch];
+				if(depth[ch] > d)
+					d = depth[ch];
+				count++;
+			}
+			c += count - 1;
+			int w = toString(n).length();
+			width[n] = w > c ? w : c;
+			depth[n] = d + 1;
+		}
+		//children are rendered before their parent, which drops their lines
+		String rendered[][] = new String[size][];
+		for(int n : post)
+			rendered[n] = render(n, width, depth, rendered);
+		return rendered[node];
+	}
+
+	/**
+	 * @param rendered the lines of the children, already rendered
+	 */
+	private String[] render(int node, int width[], int depth[], String rendered[][]) {
+		String head = toString(node);
+		int count = getChildCount(node);
+		if(count == 0)
+			return new String[] { head };
+
+		int kids[] = new int[count];
+		int maxd = 0, totalwidth = 0;
+		int i = 0;
+		for(int c = firstChild[node]; c != NONE; c = nextSibling[c]){
+			kids[i++] = c;
+			if(depth[c] > maxd)
+				maxd = depth[c];
+			totalwidth += width[c];
+		}
+		totalwidth += count - 1;	//separators
+
+		String lines[] = new String[2 + maxd * 2 - 1];
+		lines[0] = totalwidth > head.length() ? center(head, totalwidth) : head;
+
+		if(count == 1){
+			lines[1] = center("|", Math.max(totalwidth, head.length()));
+		} else {
+			StringBuilder sb = new StringBuilder();
+			int leftPadding = (width[kids[0]] - 1) / 2;
+			pad(sb, ' ', leftPadding);
+			sb.append('+');
+			pad(sb, '-', width[kids[0]] - leftPadding);
+			for(int x = 1; x < count - 1; x++)
+				pad(sb, '-', width[kids[x]] + 1);
+			leftPadding = width[kids[count - 1]] / 2;
+			pad(sb, '-', leftPadding);
+			sb.append('+');
+			pad(sb, ' ', width[kids[count - 1]] - 1 - leftPadding);
+			int p = width[kids[0]];
+			for(int x = 1; x < count - 1; x++){
+				sb.setCharAt(p + width[kids[x]] / 2 + 1, '+');
+				p += width[kids[x]] + 1;
+			}
+			if(count % 2 == 0)
+				sb.setCharAt(sb.length() / 2, '^');
+			lines[1] = sb.toString();
+		}
+
+		for(int level = 0; level < maxd * 2 - 1; level++){
+			StringBuilder sb = new StringBuilder();
+			for(i = 0; i < count; i++){
+				String kid[] = rendered[kids[i]];
+				if(level < kid.length)
+					sb.append(String.format("%" + width[kids[i]] + "s", kid[level]));
+				else
+					pad(sb, ' ', kid[0].length());
+				if(i < count - 1)
+					sb.append(" ");
+			}
+			lines[2 + level] = sb.toString();
+		}
+		for(int kid : kids)
+			rendered[kid] = null;
+		return lines;
+	}
+
+	private static void pad(StringBuilder sb, char c, int n) {
+		for(int i = 0; i < n; i++)
+			sb.append(c);
+	}
+
+	private static String center(String s, int length) {
+		if (s.length() >= length)
+			return s.substring(0, length);
+		StringBuilder sb = new StringBuilder();
+		int leftPadding = (length - s.length()) / 2;
+		pad(sb, ' ', leftPadding);
+		sb.append(s);
+		pad(sb, ' ', length - s.length() - leftPadding);
+		return sb.toString();
+	}
+}
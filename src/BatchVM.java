@@ -0,0 +1,423 @@
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Lockstep interpreter : runs one program over many inputs at once.
+ * <p>
+ * The inputs are processed by groups of N lanes. Each lane has its own
+ * ip / sp / fp, and the stacks are stored column-wise : slot k of lane l
+ * is s[k * N + l], so the same stack slot of all the lanes is contiguous.
+ * <p>
+ * At each step the lowest ip among the running lanes is chosen and the
+ * instruction is executed for all the lanes at that ip (the mask), the
+ * other ones wait. With structured code (if / while / calls) the lanes
+ * that took different branches meet again at the lowest address, so one
+ * dispatch serves many lanes. When all the lanes are at the same ip with
+ * the same sp / fp, the VM switches to a converged mode where ip / sp / fp
+ * are shared and each instruction is a plain loop over a row of the stack,
+ * which the JIT turns into SIMD code, until a conditional jump splits the
+ * lanes again.
+ * <p>
+ * The jdk.incubator.vector API is not used : it needs extra module flags
+ * at compile and run time, and the row loops already vectorize.
+ */
+public class BatchVM {
+	private final int p[];
+	private final int fs;
+	private final int lanes;
+	private final int stackMax;
+
+	private final int s[];
+	private final int ip[], sp[], fp[];
+	private final boolean halted[];
+	private final int mask[];		// lanes executing the current instruction
+	private OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+
+	private long dispatches;	// statistics
+	private long laneInstructions;
+
+	public static void main(String[] args) throws Error {
+		String sum = "sum(n) { s = 0; i = 0; while (i < n) { s = s + i * i; i = i + 1; } return s; }";
+		String fac = "fac(n) { if (n == 0) return 1; else return n * fac(n-1); }";
+		int inputs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		bench("sum, same argument", sum, inputs, 100, 0);
+		bench("sum, 90..100", sum, inputs, 90, 11);
+		bench("fac, 0..12", fac, inputs, 0, 13);
+	}
+
+	private static void bench(String name, String source, int inputs, int base, int spread) throws Error {
+		MiniScript ms = MiniScript.compile(source);
+		int args[] = new int[inputs];
+		for(int i = 0; i < inputs; i++)
+			args[i] = base + (spread > 0 ? i % spread : 0);
+		BatchVM batch = new BatchVM(ms.getCode(), ms.getFrameSize(), 64, 256);
+		long tv = 0, tb = 0;
+		int res[] = null;
+		int ref[] = new int[inputs];
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			for(int i = 0; i < inputs; i++)
+				ref[i] = ms.eval(args[i]);
+			long t1 = System.nanoTime();
+			res = batch.exec(args);
+			long t2 = System.nanoTime();
+			tv = t1 - t0;
+			tb = t2 - t1;
+		}
+		System.out.println(String.format("%-20s: VM %4d ms, BatchVM %4d ms, %.1f lanes/dispatch, same results : %b",
+				name, tv / 1000000, tb / 1000000, batch.getLanesPerDispatch(), Arrays.equals(ref, res)));
+	}
+
+	/**
+	 * @param code the compiled program
+	 * @param frameSize the number of local variables
+	 * @param lanes the number of inputs run in lockstep
+	 * @param stackMax the stack size of each lane
+	 */
+	BatchVM(int code[], int frameSize, int lanes, int stackMax) {
+		this.p = code;
+		this.fs = frameSize;
+		this.lanes = lanes;
+		this.stackMax = stackMax;
+		s = new int[lanes * stackMax];
+		ip = new int[lanes];
+		sp = new int[lanes];
+		fp = new int[lanes];
+		halted = new boolean[lanes];
+		mask = new int[lanes];
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out) {
+		this.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * Run the program for each argument
+	 * @param args the inputs
+	 * @return the results, in the same order
+	 * @throws Error on illegal code
+	 */
+	int[] exec(int args[]) throws Error {
+		int res[] = new int[args.length];
+		for(int from = 0; from < args.length; from += lanes){
+			int n = Math.min(lanes, args.length - from);
+			group(args, from, n);
+			for(int l = 0; l < n; l++)
+				res[from + l] = s[l];
+		}
+		return res;
+	}
+
+	/**
+	 * Run a group of at most N inputs, the unused lanes are halted from the start
+	 */
+	private void group(int args[], int from, int n) throws Error {
+		int N = lanes;
+		for(int l = 0; l < N; l++){
+			ip[l] = 0;
+			fp[l] = 0;
+			sp[l] = 1;
+			s[l] = l < n ? args[from + l] : 0;
+			halted[l] = l >= n;
+		}
+		int running = n;
+		try {
+			while(running > 0){
+				//select the lowest ip and the lanes that are at it
+				int pc = Integer.MAX_VALUE;
+				for(int l = 0; l < N; l++)
+					if(!halted[l] && ip[l] < pc)
+						pc = ip[l];
+				int m = 0;
+				boolean uniform = true;
+				int sp0 = -1, fp0 = -1;
+				for(int l = 0; l < N; l++){
+					if(!halted[l] && ip[l] == pc){
+						mask[m++] = l;
+						if(sp0 < 0){
+							sp0 = sp[l];
+							fp0 = fp[l];
+						} else if(sp[l] != sp0 || fp[l] != fp0)
+							uniform = false;
+					}
+				}
+				if(uniform && m == N)
+					running -= runConverged(pc, sp0, fp0);
+				else {
+					dispatches++;
+					laneInstructions += m;
+					running -= stepMasked(pc, m);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new Error("stack overflow");
+		}
+	}
+
+	/**
+	 * Converged mode : all the lanes are at the same ip with the same sp / fp,
+	 * so ip / sp / fp are kept in locals and each instruction is a loop over
+	 * a row of the stack. Runs until a conditional jump splits the lanes or
+	 * the program halts.
+	 * @return the number of lanes that halted
+	 */
+	private int runConverged(int pc, int sp0, int fp0) throws Error {
+		final int N = lanes;
+		int stopped = 0;
+		boolean diverged = false;
+		while(!diverged && stopped == 0){
+			OpCode op = OpCode.fromInt(p[pc]);
+			int a = (sp0 - 2) * N, b = (sp0 - 1) * N, t = sp0 * N;
+			dispatches++;
+			laneInstructions += N;
+			switch (op) {
+				case M_nop:
+					pc++;
+					break;
+				case M_push:
+					Arrays.fill(s, t, t + N, p[pc + 1]);
+					sp0++;
+					pc += 2;
+					break;
+				case M_load:
+					System.arraycopy(s, (fp0 + p[pc + 1]) * N, s, t, N);
+					sp0++;
+					pc += 2;
+					break;
+				case M_pop:
+					System.arraycopy(s, b, s, (fp0 + p[pc + 1]) * N, N);
+					sp0--;
+					pc += 2;
+					break;
+				case M_add:
+					for(int l = 0; l < N; l++)
+						s[a + l] += s[b + l];
+					sp0--;
+					pc++;
+					break;
+				case M_sub:
+					for(int l = 0; l < N; l++)
+						s[a + l] -= s[b + l];
+					sp0--;
+					pc++;
+					break;
+				case M_mul:
+					for(int l = 0; l < N; l++)
+						s[a + l] *= s[b + l];
+					sp0--;
+					pc++;
+					break;
+				case M_div:
+					for(int l = 0; l < N; l++)
+						s[a + l] /= s[b + l];
+					sp0--;
+					pc++;
+					break;
+				case M_if_cmpeq:
+				case M_if_cmpne:
+				case M_if_cmple:
+				case M_if_cmpge:
+				case M_if_cmplt:
+				case M_if_cmpgt: {
+					int taken = 0;
+					for(int l = 0; l < N; l++){
+						int x = s[a + l], y = s[b + l];
+						boolean jump;
+						if(op == OpCode.M_if_cmpeq)
+							jump = x == y;
+						else if(op == OpCode.M_if_cmpne)
+							jump = x != y;
+						else if(op == OpCode.M_if_cmple)
+							jump = x <= y;
+						else if(op == OpCode.M_if_cmpge)
+							jump = x >= y;
+						else if(op == OpCode.M_if_cmplt)
+							jump = x < y;
+						else
+							jump = x > y;
+						ip[l] = jump ? p[pc + 1] : pc + 2;
+						if(jump)
+							taken++;
+					}
+					sp0 -= 2;
+					if(taken == 0)
+						pc += 2;
+					else if(taken == N)
+						pc = p[pc + 1];
+					else
+						diverged = true;	//ip[] holds the target of each lane
+					break;
+				}
+				case M_goto:
+					pc = p[pc + 1];
+					break;
+				case M_jsr: {
+					Arrays.fill(s, t, t + N, pc + 2);			// save return address
+					Arrays.fill(s, t + N, t + 2 * N, fp0);		// save fp
+					fp0 = sp0 + 2;
+					sp0 = fp0 + fs;
+					if(sp0 >= stackMax)
+						throw new Error("stack overflow");
+					System.arraycopy(s, (fp0 - 3) * N, s, (fp0 + 1) * N, N);	// copy argument
+					pc = p[pc + 1];
+					break;
+				}
+				case M_ret: {
+					System.arraycopy(s, b, s, (fp0 - 3) * N, N);	// copy return value
+					int base = fp0 - 2;
+					sp0 = base;
+					fp0 = s[(base + 1) * N];	// same in all the lanes
+					pc = s[base * N];
+					break;
+				}
+				case M_pval:
+					for(int l = 0; l < N; l++)
+						out.print(s[b + l]);
+					sp0--;
+					pc++;
+					break;
+				case M_halt:
+					Arrays.fill(halted, true);
+					stopped = N;
+					break;
+				default:
+					throw new Error("illegal vm code " + p[pc]);
+			}
+		}
+		if(!diverged)
+			Arrays.fill(ip, pc);
+		Arrays.fill(sp, sp0);
+		Arrays.fill(fp, fp0);
+		return stopped;
+	}
+
+	/**
+	 * Execute the instruction at pc for the lanes of the mask
+	 * @return the number of lanes that halted
+	 */
+	private int stepMasked(int pc, int m) throws Error {
+		final int N = lanes;
+		int stopped = 0;
+		OpCode op = OpCode.fromInt(p[pc]);
+		int arg = op.hasArg() ? p[pc + 1] : 0;
+		for(int i = 0; i < m; i++){
+			int l = mask[i];
+			int top = sp[l];
+			switch (op) {
+				case M_nop:
+					ip[l] = pc + 1;
+					break;
+				case M_push:
+					s[top * N + l] = arg;
+					sp[l] = top + 1;
+					ip[l] = pc + 2;
+					break;
+				case M_load:
+					s[top * N + l] = s[(fp[l] + arg) * N + l];
+					sp[l] = top + 1;
+					ip[l] = pc + 2;
+					break;
+				case M_pop:
+					s[(fp[l] + arg) * N + l] = s[(top - 1) * N + l];
+					sp[l] = top - 1;
+					ip[l] = pc + 2;
+					break;
+				case M_add:
+					s[(top - 2) * N + l] += s[(top - 1) * N + l];
+					sp[l] = top - 1;
+					ip[l] = pc + 1;
+					break;
+				case M_sub:
+					s[(top - 2) * N + l] -= s[(top - 1) * N + l];
+					sp[l] = top - 1;
+					ip[l] = pc + 1;
+					break;
+				case M_mul:
+					s[(top - 2) * N + l] *= s[(top - 1) * N + l];
+					sp[l] = top - 1;
+					ip[l] = pc + 1;
+					break;
+				case M_div:
+					s[(top - 2) * N + l] /= s[(top - 1) * N + l];
+					sp[l] = top - 1;
+					ip[l] = pc + 1;
+					break;
+				case M_if_cmpeq:
+				case M_if_cmpne:
+				case M_if_cmple:
+				case M_if_cmpge:
+				case M_if_cmplt:
+				case M_if_cmpgt: {
+					int x = s[(top - 2) * N + l], y = s[(top - 1) * N + l];
+					boolean jump;
+					if(op == OpCode.M_if_cmpeq)
+						jump = x == y;
+					else if(op == OpCode.M_if_cmpne)
+						jump = x != y;
+					else if(op == OpCode.M_if_cmple)
+						jump = x <= y;
+					else if(op == OpCode.M_if_cmpge)
+						jump = x >= y;
+					else if(op == OpCode.M_if_cmplt)
+						jump = x < y;
+					else
+						jump = x > y;
+					sp[l] = top - 2;
+					ip[l] = jump ? arg : pc + 2;
+					break;
+				}
+				case M_goto:
+					ip[l] = arg;
+					break;
+				case M_jsr: {
+					s[top * N + l] = pc + 2;			// save return address
+					s[(top + 1) * N + l] = fp[l];		// save fp
+					int f = top + 2;
+					fp[l] = f;
+					sp[l] = f + fs;
+					if(sp[l] >= stackMax)
+						throw new Error("stack overflow");
+					s[(f + 1) * N + l] = s[(f - 3) * N + l];	// copy argument
+					ip[l] = arg;
+					break;
+				}
+				case M_ret: {
+					int f = fp[l];
+					s[(f - 3) * N + l] = s[(top - 1) * N + l];	// copy return value
+					int base = f - 2;
+					sp[l] = base;
+					fp[l] = s[(base + 1) * N + l];
+					ip[l] = s[base * N + l];
+					break;
+				}
+				case M_pval:
+					out.print(s[(top - 1) * N + l]);
+					sp[l] = top - 1;
+					ip[l] = pc + 1;
+					break;
+				case M_halt:
+					halted[l] = true;
+					stopped++;
+					break;
+				default:
+					throw new Error("illegal vm code " + p[pc]);
+			}
+		}
+		return stopped;
+	}
+
+	/**
+	 * @return the mean number of lanes served by one dispatch
+	 */
+	double getLanesPerDispatch() {
+		return dispatches == 0 ? 0 : (double) laneInstructions / dispatches;
+	}
+
+	long getDispatches() {
+		return dispatches;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Branch counts of VM runs, by address of the conditional jumps
+ */
+class BranchProfile {
+	final long taken[];
+	final long fallen[];
+	long jumps;			// M_goto
+	long calls;			// M_jsr
+	long dispatches;	// executed instructions, if the caller counts them
+
+	BranchProfile(int codeSize) {
+		taken = new long[codeSize];
+		fallen = new long[codeSize];
+	}
+
+	void record(int ip, boolean jump) {
+		if(jump)
+			taken[ip]++;
+		else
+			fallen[ip]++;
+	}
+
+	/**
+	 * @return the number of jumps that were executed : taken conditional
+	 * jumps and gotos
+	 */
+	long getTakenJumps() {
+		long n = jumps;
+		for(long t : taken)
+			n += t;
+		return n;
+	}
+}
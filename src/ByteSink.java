@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+/**
+ * Buffered output sink : formats the values to ASCII in a byte buffer,
+ * one per line, and writes the buffer to the stream when it is full or
+ * on {@link #flush()}. There is no lock and no charset encoding. Like a
+ * PrintWriter, an I/O error does not stop the VM, it is reported by
+ * {@link #checkError()}.
+ */
+public class ByteSink implements OutputSink {
+	private static final byte NL[] = System.lineSeparator().getBytes();
+
+	private final OutputStream out;
+	private final byte buf[];
+	private int count;
+	private boolean error;
+
+	public static void main(String[] args) throws Error {
+		MiniScript loop = MiniScript.compile("count(n) { i = 0; while (i < n) { print i; i = i + 1; } return i; }");
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		PrintStream devNull = new PrintStream(OutputStream.nullOutputStream());
+		VM vm = loop.newVM();
+		long tw = 0, tb = 0, tc = 0, tn = 0;
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			vm.setOutput(new PrintWriter(devNull, true));	// as System.out : lock and flush per line
+			vm.exec(n);
+			long t1 = System.nanoTime();
+			ByteSink bytes = new ByteSink(devNull);
+			vm.setOutput(bytes);
+			vm.exec(n);
+			bytes.flush();
+			long t2 = System.nanoTime();
+			IntCollector ints = new IntCollector();
+			vm.setOutput(ints);
+			vm.exec(n);
+			long t3 = System.nanoTime();
+			vm.setOutput(NullSink.INSTANCE);
+			vm.exec(n);
+			long t4 = System.nanoTime();
+			tw = t1 - t0;
+			tb = t2 - t1;
+			tc = t3 - t2;
+			tn = t4 - t3;
+		}
+		System.out.println(String.format("%d prints : PrintWriter %d ms, ByteSink %d ms, IntCollector %d ms, NullSink %d ms",
+				n, tw / 1000000, tb / 1000000, tc / 1000000, tn / 1000000));
+	}
+
+	public ByteSink(OutputStream out) {
+		this(out, 8192);
+	}
+
+	public ByteSink(OutputStream out, int size) {
+		this.out = out;
+		this.buf = new byte[Math.max(size, 16)];
+	}
+
+	public void print(int value) {
+		if(buf.length - count < 11 + NL.length)
+			drain();
+		if(value < 0){
+			if(value == Integer.MIN_VALUE){
+				for(char c : "-2147483648".toCharArray())
+					buf[count++] = (byte) c;
+				newLine();
+				return;
+			}
+			buf[count++] = '-';
+			value = -value;
+		}
+		int end = count + digits(value);
+		for(int i = end - 1; i >= count; i--){
+			buf[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		count = end;
+		newLine();
+	}
+
+	/**
+	 * Print the decimal text of a wide value, through the buffer
+	 */
+	public void print(Number value) {
+		String text = value.toString();
+		for(int i = 0; i < text.length(); i++){
+			if(count == buf.length)
+				drain();
+			buf[count++] = (byte) text.charAt(i);
+		}
+		if(buf.length - count < NL.length)
+			drain();
+		newLine();
+	}
+
+	private static int digits(int v) {
+		int n = 1;
+		while(v >= 10){
+			v /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	private void newLine() {
+		for(byte b : NL)
+			buf[count++] = b;
+	}
+
+	private void drain() {
+		if(count > 0 && !error){
+			try {
+				out.write(buf, 0, count);
+			} catch (IOException e) {
+				error = true;
+			}
+		}
+		count = 0;
+	}
+
+	public void flush() {
+		drain();
+		if(!error){
+			try {
+				out.flush();
+			} catch (IOException e) {
+				error = true;
+			}
+		}
+	}
+
+	/**
+	 * @return true if a write failed, the values are then dropped
+	 */
+	public boolean checkError() {
+		return error;
+	}
+}
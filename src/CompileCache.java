@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of compiled programs, keyed by a SHA-256 of the source text, of
+ * the compiler version and of the compiler options.
+ * <p>
+ * The memory tier keeps at most maxEntries programs and evicts the least
+ * recently used one. The optional disk tier stores the compiled code of
+ * every program in a directory, so that it survives a restart.
+ * <p>
+ * Lookups are thread safe and a source is compiled only once even if many
+ * threads ask for it at the same time: the first one compiles, the others
+ * wait for its result. Failed compilations are not cached.
+ */
+public class CompileCache {
+	private final int maxEntries;
+	private final File dir;
+	private final int codeMax;
+	private final int stackSize;
+	private final Map<String, FutureTask<MiniScript>> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public static void main(String[] args) throws Error, InterruptedException {
+		final CompileCache cache = new CompileCache(2, null);
+		final String fac = "fac(n) { if (n == 0) return 1; else return n * fac(n-1); }";
+		Thread threads[] = new Thread[8];
+		for(int i = 0; i < threads.length; i++){
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for(int n = 0; n < 1000; n++)
+							cache.get(fac).eval(5);
+					} catch (Error e) {
+						System.out.println("error " + e.getMessage());
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		System.out.println(cache.getStats());
+		cache.get("a(x) { return 1; }");
+		cache.get("b(x) { return 2; }");
+		cache.get(fac);
+		System.out.println(cache.getStats());
+	}
+
+	/**
+	 * @param maxEntries the size of the memory tier
+	 * @param dir the directory of the disk tier, null for none
+	 */
+	CompileCache(int maxEntries, File dir) {
+		this(maxEntries, dir, MiniVM.code_max, MiniVM.stack_max);
+	}
+
+	/**
+	 * @param codeMax the compiler code buffer size
+	 * @param stackSize the VM stack size of the compiled programs
+	 */
+	CompileCache(final int maxEntries, File dir, int codeMax, int stackSize) {
+		this.maxEntries = maxEntries;
+		this.dir = dir;
+		this.codeMax = codeMax;
+		this.stackSize = stackSize;
+		if(dir != null)
+			dir.mkdirs();
+		entries = new LinkedHashMap<String, FutureTask<MiniScript>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FutureTask<MiniScript>> eldest) {
+				if(size() > CompileCache.this.maxEntries){
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the compiled program for a source, compiling it if needed
+	 * @param source the Mini source code
+	 * @return the shared compiled program
+	 * @throws Error if the source does not compile
+	 */
+	public MiniScript get(final String source) throws Error {
+		final String key = key(source);
+		FutureTask<MiniScript> task;
+		boolean owner = false;
+		synchronized (entries) {
+			task = entries.get(key);
+			if(task == null){
+				task = new FutureTask<MiniScript>(new Callable<MiniScript>() {
+					public MiniScript call() throws Exception {
+						return load(key, source);
+					}
+				});
+				entries.put(key, task);
+				owner = true;
+			}
+		}
+		if(owner)
+			task.run();
+		else
+			hits.incrementAndGet();
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			synchronized (entries) {
+				if(entries.get(key) == task)
+					entries.remove(key);
+			}
+			if(e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new Error("compile " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Error("interrupted");
+		}
+	}
+
+	/**
+	 * Memory miss : read the disk tier or compile
+	 */
+	private MiniScript load(String key, String source) throws Error {
+		if(dir != null){
+			MiniScript ms = readDisk(key);
+			if(ms != null){
+				diskHits.incrementAndGet();
+				return ms;
+			}
+		}
+		misses.incrementAndGet();
+		MiniScript ms = MiniScript.compile(new StringReader(source), codeMax, stackSize);
+		if(dir != null)
+			writeDisk(key, ms);
+		return ms;
+	}
+
+	private MiniScript readDisk(String key) {
+		File f = new File(dir, key + ".mvc");
+		if(!f.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				return MiniScript.load(in, stackSize);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			//unreadable entry : compile again
+			return null;
+		}
+	}
+
+	private void writeDisk(String key, MiniScript ms) {
+		try {
+			File tmp = File.createTempFile(key, ".tmp", dir);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				ms.save(out);
+			} finally {
+				out.close();
+			}
+			//readers never see a partial file
+			Files.move(tmp.toPath(), new File(dir, key + ".mvc").toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			//the disk tier is only an optimization
+		}
+	}
+
+	/**
+	 * Hash of the source + compiler version and options, the files of an
+	 * older compiler are never read
+	 */
+	String key(String source) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update((MiniScript.COMPILER_VERSION + ":" + codeMax + ":" + stackSize + ":").getBytes(StandardCharsets.UTF_8));
+			byte digest[] = md.digest(source.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Drop the memory tier (the disk tier is kept)
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public String getStats() {
+		return String.format("entries %d, hits %d, disk hits %d, misses %d, evictions %d",
+				size(), getHits(), getDiskHits(), getMisses(), getEvictions());
+	}
+}
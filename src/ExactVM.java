@@ -0,0 +1,493 @@
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Interpreter with exact arithmetic : results never silently overflow.
+ * <p>
+ * A run starts on an int stack, like {@link VM}, with a cheap overflow
+ * check on each add, sub, mul and div (the tests of Math.addExact and
+ * co., without the exception). On the first overflow, the run is
+ * deoptimised : the stack is copied into a long stack and the faulting
+ * instruction is executed again in long. An overflow in long moves the
+ * run to BigInteger slots the same way. Small numbers keep the speed of
+ * the int interpreter, large ones get the right result.
+ * <pre>
+ * ExactVM &lt;script.mini&gt; arg
+ * </pre>
+ */
+public class ExactVM {
+	enum Mode { INT, LONG, BIG }
+
+	private static final OpCode ops[] = new OpCode[OpCode.values().length];
+
+	static {
+		for(OpCode op : OpCode.values())
+			ops[op.getValue()] = op;
+	}
+
+	private final int p[]; // program code
+	private final int fs; // frame size
+	private final int is[]; // int stack
+	private long ls[]; // long stack, allocated on the first overflow
+	private BigInteger bs[]; // BigInteger stack
+	private int ip, sp, fp; // state saved at a deoptimisation
+	private Mode mode;
+	private OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+
+	public static void main(String[] args) throws Error {
+		if(args.length == 2){
+			MiniScript ms;
+			try {
+				ms = MiniScript.compile(new FileReader(args[0]));
+			} catch (FileNotFoundException e) {
+				throw new Error("file not found " + args[0]);
+			}
+			ExactVM vm = new ExactVM(ms.getCode(), ms.getFrameSize(), MiniVM.stack_max);
+			System.out.println("Result: " + vm.exec(Integer.parseInt(args[1])));
+			return;
+		}
+		MiniScript fac = MiniScript.compile("fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+		ExactVM vm = new ExactVM(fac.getCode(), fac.getFrameSize(), MiniVM.stack_max);
+		for(int n : new int[] { 12, 13, 20, 21, 30 })
+			System.out.println(String.format("fac(%d) : VM %d, ExactVM %s (%s)", n, fac.eval(n), vm.exec(n), vm.getMode()));
+
+		//the common small-number case must not be slower than the int VM
+		VM ivm = fac.newVM();
+		long tv = 0, tx = 0;
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			for(int i = 0; i < 200000; i++)
+				ivm.exec(12);
+			long t1 = System.nanoTime();
+			for(int i = 0; i < 200000; i++)
+				vm.exec(12);
+			long t2 = System.nanoTime();
+			tv = t1 - t0;
+			tx = t2 - t1;
+		}
+		System.out.println(String.format("200000 x fac(12) : VM %d ms, ExactVM %d ms", tv / 1000000, tx / 1000000));
+	}
+
+	ExactVM(int code[], int frame_size, int stack_max) {
+		p = code;
+		fs = frame_size;
+		is = new int[stack_max];
+	}
+
+	/**
+	 * Set where the print statement writes
+	 * @param out the writer, null to discard
+	 */
+	public void setOutput(PrintWriter out) {
+		this.out = out == null ? NullSink.INSTANCE : new WriterSink(out);
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out) {
+		this.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * @return the arithmetic the last run ended with
+	 */
+	Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Run the program from the start
+	 *
+	 * @param arg the function argument
+	 * @return the result : an Integer, a Long or a BigInteger depending
+	 * on how far the run was deoptimised
+	 * @throws Error with the messages of MiniScript.eval
+	 */
+	Number exec(int arg) throws Error {
+		ip = 0;
+		sp = 1;
+		fp = 0;
+		is[0] = arg;
+		try {
+			mode = Mode.INT;
+			if(runInt())
+				return is[0];
+			toLong();
+			mode = Mode.LONG;
+			if(runLong())
+				return ls[0];
+			toBig();
+			mode = Mode.BIG;
+			runBig();
+			return bs[0];
+		} catch (ArrayIndexOutOfBoundsException e) {
+			//the loops store ip back on the way out
+			if(ip >= p.length)
+				throw new Error("end of the function reached without return");
+			throw new Error("stack overflow");
+		} catch (ArithmeticException e) {
+			throw new Error("division by zero");
+		}
+	}
+
+	private void toLong() {
+		if(ls == null)
+			ls = new long[is.length];
+		for(int i = 0; i < sp; i++)
+			ls[i] = is[i];
+	}
+
+	private void toBig() {
+		if(bs == null){
+			bs = new BigInteger[is.length];
+			Arrays.fill(bs, BigInteger.ZERO);	// variables read before being set
+		}
+		for(int i = 0; i < sp; i++)
+			bs[i] = BigInteger.valueOf(ls[i]);
+	}
+
+	/**
+	 * @return true if halted, false on overflow with the state of the
+	 * faulting instruction saved
+	 */
+	private boolean runInt() throws Error {
+		final int p[] = this.p, s[] = this.is;
+		int ip = this.ip, sp = this.sp, fp = this.fp;
+		int a, b, r;
+		try {
+			loop:
+			while (true) {
+				switch (ops[p[ip]]) {
+					case M_nop:
+						ip++;
+						break;
+					case M_push:
+						s[sp++] = p[ip + 1];
+						ip += 2;
+						break;
+					case M_load:
+						s[sp++] = s[fp + p[ip + 1]];
+						ip += 2;
+						break;
+					case M_pop:
+						s[fp + p[ip + 1]] = s[--sp];
+						ip += 2;
+						break;
+					case M_add:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						r = a + b;
+						if(((a ^ r) & (b ^ r)) < 0)
+							break loop;
+						s[--sp - 1] = r;
+						ip++;
+						break;
+					case M_sub:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						r = a - b;
+						if(((a ^ b) & (a ^ r)) < 0)
+							break loop;
+						s[--sp - 1] = r;
+						ip++;
+						break;
+					case M_mul:
+						long m = (long) s[sp - 2] * s[sp - 1];
+						if((int) m != m)
+							break loop;
+						s[--sp - 1] = (int) m;
+						ip++;
+						break;
+					case M_div:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						if(a == Integer.MIN_VALUE && b == -1)
+							break loop;
+						s[--sp - 1] = a / b;
+						ip++;
+						break;
+					case M_if_cmpeq:
+						sp -= 2;
+						ip = s[sp] == s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpne:
+						sp -= 2;
+						ip = s[sp] != s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmple:
+						sp -= 2;
+						ip = s[sp] <= s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpge:
+						sp -= 2;
+						ip = s[sp] >= s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmplt:
+						sp -= 2;
+						ip = s[sp] < s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpgt:
+						sp -= 2;
+						ip = s[sp] > s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_goto:
+						ip = p[ip + 1];
+						break;
+					case M_jsr:
+						s[sp] = ip + 2; 		// save return address
+						s[sp + 1] = fp; 		// save fp
+						fp = sp + 2; 			// set fp
+						sp = fp + fs; 			// set sp
+						s[fp + 1] = s[fp - 3];	// copy argument
+						ip = p[ip + 1];			// goto start address
+						break;
+					case M_ret:
+						s[fp - 3] = s[sp - 1];	// copy return value
+						sp = fp - 2;			// reset sp
+						fp = s[sp + 1];			// reset fp
+						ip = s[sp];				// goto return address
+						break;
+					case M_pval:
+						out.print(s[sp - 1]);
+						sp--;
+						ip++;
+						break;
+					case M_halt:
+						return true;
+					default:
+						throw new Error("illegal vm code " + p[ip]);
+				}
+			}
+		} finally {
+			this.ip = ip;
+			this.sp = sp;
+			this.fp = fp;
+		}
+		return false;
+	}
+
+	private boolean runLong() throws Error {
+		final int p[] = this.p;
+		final long s[] = this.ls;
+		int ip = this.ip, sp = this.sp, fp = this.fp;
+		long a, b, r;
+		try {
+			loop:
+			while (true) {
+				switch (ops[p[ip]]) {
+					case M_nop:
+						ip++;
+						break;
+					case M_push:
+						s[sp++] = p[ip + 1];
+						ip += 2;
+						break;
+					case M_load:
+						s[sp++] = s[fp + p[ip + 1]];
+						ip += 2;
+						break;
+					case M_pop:
+						s[fp + p[ip + 1]] = s[--sp];
+						ip += 2;
+						break;
+					case M_add:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						r = a + b;
+						if(((a ^ r) & (b ^ r)) < 0)
+							break loop;
+						s[--sp - 1] = r;
+						ip++;
+						break;
+					case M_sub:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						r = a - b;
+						if(((a ^ b) & (a ^ r)) < 0)
+							break loop;
+						s[--sp - 1] = r;
+						ip++;
+						break;
+					case M_mul:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						r = a * b;
+						if(Math.multiplyHigh(a, b) != (r >> 63))
+							break loop;
+						s[--sp - 1] = r;
+						ip++;
+						break;
+					case M_div:
+						a = s[sp - 2];
+						b = s[sp - 1];
+						if(a == Long.MIN_VALUE && b == -1)
+							break loop;
+						s[--sp - 1] = a / b;
+						ip++;
+						break;
+					case M_if_cmpeq:
+						sp -= 2;
+						ip = s[sp] == s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpne:
+						sp -= 2;
+						ip = s[sp] != s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmple:
+						sp -= 2;
+						ip = s[sp] <= s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpge:
+						sp -= 2;
+						ip = s[sp] >= s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmplt:
+						sp -= 2;
+						ip = s[sp] < s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpgt:
+						sp -= 2;
+						ip = s[sp] > s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_goto:
+						ip = p[ip + 1];
+						break;
+					case M_jsr:
+						s[sp] = ip + 2;
+						s[sp + 1] = fp;
+						fp = sp + 2;
+						sp = fp + fs;
+						s[fp + 1] = s[fp - 3];
+						ip = p[ip + 1];
+						break;
+					case M_ret:
+						s[fp - 3] = s[sp - 1];
+						sp = fp - 2;
+						fp = (int) s[sp + 1];
+						ip = (int) s[sp];
+						break;
+					case M_pval:
+						out.print(Long.valueOf(s[sp - 1]));
+						sp--;
+						ip++;
+						break;
+					case M_halt:
+						return true;
+					default:
+						throw new Error("illegal vm code " + p[ip]);
+				}
+			}
+		} finally {
+			this.ip = ip;
+			this.sp = sp;
+			this.fp = fp;
+		}
+		return false;
+	}
+
+	private void runBig() throws Error {
+		final int p[] = this.p;
+		final BigInteger s[] = this.bs;
+		int ip = this.ip, sp = this.sp, fp = this.fp;
+		try {
+			while (true) {
+				switch (ops[p[ip]]) {
+					case M_nop:
+						ip++;
+						break;
+					case M_push:
+						s[sp++] = BigInteger.valueOf(p[ip + 1]);
+						ip += 2;
+						break;
+					case M_load:
+						s[sp++] = s[fp + p[ip + 1]];
+						ip += 2;
+						break;
+					case M_pop:
+						s[fp + p[ip + 1]] = s[--sp];
+						ip += 2;
+						break;
+					case M_add:
+						sp--;
+						s[sp - 1] = s[sp - 1].add(s[sp]);
+						ip++;
+						break;
+					case M_sub:
+						sp--;
+						s[sp - 1] = s[sp - 1].subtract(s[sp]);
+						ip++;
+						break;
+					case M_mul:
+						sp--;
+						s[sp - 1] = s[sp - 1].multiply(s[sp]);
+						ip++;
+						break;
+					case M_div:
+						sp--;
+						s[sp - 1] = s[sp - 1].divide(s[sp]);
+						ip++;
+						break;
+					case M_if_cmpeq:
+						sp -= 2;
+						ip = s[sp].compareTo(s[sp + 1]) == 0 ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpne:
+						sp -= 2;
+						ip = s[sp].compareTo(s[sp + 1]) != 0 ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmple:
+						sp -= 2;
+						ip = s[sp].compareTo(s[sp + 1]) <= 0 ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpge:
+						sp -= 2;
+						ip = s[sp].compareTo(s[sp + 1]) >= 0 ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmplt:
+						sp -= 2;
+						ip = s[sp].compareTo(s[sp + 1]) < 0 ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpgt:
+						sp -= 2;
+						ip = s[sp].compareTo(s[sp + 1]) > 0 ? p[ip + 1] : ip + 2;
+						break;
+					case M_goto:
+						ip = p[ip + 1];
+						break;
+					case M_jsr:
+						s[sp] = BigInteger.valueOf(ip + 2);
+						s[sp + 1] = BigInteger.valueOf(fp);
+						fp = sp + 2;
+						sp = fp + fs;
+						s[fp + 1] = s[fp - 3];
+						ip = p[ip + 1];
+						break;
+					case M_ret:
+						s[fp - 3] = s[sp - 1];
+						sp = fp - 2;
+						fp = s[sp + 1].intValue();
+						ip = s[sp].intValue();
+						break;
+					case M_pval:
+						out.print(s[sp - 1]);
+						sp--;
+						ip++;
+						break;
+					case M_halt:
+						return;
+					default:
+						throw new Error("illegal vm code " + p[ip]);
+				}
+			}
+		} finally {
+			this.ip = ip;
+			this.sp = sp;
+			this.fp = fp;
+		}
+	}
+}
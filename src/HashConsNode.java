@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable tree node with structural equality.
+ * <p>
+ * Two HashConsNode are equal if they have equal data and equal children,
+ * in the same order. The hash is computed once at construction.
+ * Nodes are meant to be built through a {@link NodeInterner} so that
+ * identical sub trees are shared: for interned nodes, structural equality
+ * is the same as identity (==), which is what a common subexpression
+ * elimination pass needs.
+ * <p>
+ * As a node can be shared by several parents, there is no parent link.
+ */
+public final class HashConsNode<T> {
+
+	private final T data;
+	private final HashConsNode<T> children[];
+	private final int hash;
+	private final int nodes;	// size of the sub tree
+
+	public static void main(String[] args) {
+		System.out.println("Test HashConsNode");
+
+		// n * fac(n - 1) + fac(n - 1) * n
+		NodeInterner<String> in = new NodeInterner<String>();
+		HashConsNode<String> call1 = in.make("fac", in.make("-", in.make("n"), in.make("1")));
+		HashConsNode<String> call2 = in.make("fac", in.make("-", in.make("n"), in.make("1")));
+		HashConsNode<String> expr = in.make("+",
+				in.make("*", in.make("n"), call1),
+				in.make("*", call2, in.make("n")));
+
+		for(String s : expr.toTreeNode().toPrettifiedStrings())
+			System.out.println(s);
+		System.out.println("fac(n-1) shared : " + (call1 == call2));
+		System.out.println("Nodes : " + expr.getNumberOfNodes() + ", distinct : " + in.size());
+
+		// interning a mutable tree shares its repeated sub trees too
+		TreeNode<String> tn = new TreeNode<String>("*");
+		tn.addChild(new TreeNode<String>("n"));
+		tn.addChild(new TreeNode<String>("n"));
+		HashConsNode<String> sq = in.intern(tn);
+		System.out.println("n * n shares its operands : " + (sq.getChildAt(0) == sq.getChildAt(1)));
+	}
+
+	/**
+	 * Use {@link NodeInterner#make} to get shared nodes
+	 */
+	@SafeVarargs
+	HashConsNode(T data, HashConsNode<T>... children){
+		this.data = data;
+		this.children = newArray(children.length);
+		for(int i = 0; i < children.length; i++)
+			this.children[i] = children[i];
+		int h = data == null ? 0 : data.hashCode();
+		int n = 1;
+		for(HashConsNode<T> c : this.children){
+			h = 31 * h + c.hash;
+			n += c.nodes;
+		}
+		this.hash = h;
+		this.nodes = n;
+	}
+
+	/**
+	 * @return an array of n children, to build a node from
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> HashConsNode<T>[] newArray(int n){
+		return (HashConsNode<T>[]) new HashConsNode<?>[n];
+	}
+
+	T getData(){
+		return data;
+	}
+
+	HashConsNode<T> getChildAt(int index){
+		return children[index];
+	}
+
+	int getChildCount(){
+		return children.length;
+	}
+
+	/**
+	 * @return a read only view of the children
+	 */
+	List<HashConsNode<T>> getChildren(){
+		return Collections.unmodifiableList(Arrays.asList(children));
+	}
+
+	/**
+	 * Get the number of nodes in the current sub tree,
+	 * counting shared nodes once per occurrence
+	 */
+	public int getNumberOfNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Copy to a mutable TreeNode (shared nodes are duplicated)
+	 */
+	TreeNode<T> toTreeNode(){
+		TreeNode<T> tn = new TreeNode<T>(data);
+		for(HashConsNode<T> c : children)
+			tn.addChild(c.toTreeNode());
+		return tn;
+	}
+
+	@Override
+	public int hashCode(){
+		return hash;
+	}
+
+	/**
+	 * Structural equality : same data and equal children
+	 */
+	@Override
+	public boolean equals(Object obj){
+		if(obj == this)
+			return true;
+		if(!(obj instanceof HashConsNode))
+			return false;
+		HashConsNode<?> other = (HashConsNode<?>) obj;
+		if(other.hash != hash || other.nodes != nodes || other.children.length != children.length)
+			return false;
+		if(data == null ? other.data != null : !data.equals(other.data))
+			return false;
+		for(int i = 0; i < children.length; i++){
+			//interned children are the same objects, no need to go deeper
+			if(children[i] != other.children[i] && !children[i].equals(other.children[i]))
+				return false;
+		}
+		return true;
+	}
+
+	public String toString(){
+		return '(' + String.valueOf(data) + ')';
+	}
+}
+
+/**
+ * Hash-consing factory: returns the existing node when an equal one was
+ * already built by this interner.
+ * <p>
+ * As the children of a node made here are interned themselves, the lookup
+ * only compares the data and the children references.
+ */
+class NodeInterner<T> {
+	private Map<HashConsNode<T>, HashConsNode<T>> table = new HashMap<HashConsNode<T>, HashConsNode<T>>();
+	private long hits;
+
+	/**
+	 * Get the shared node for data + children
+	 * @param data the value of the node
+	 * @param children interned children
+	 * @return the unique node
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	final HashConsNode<T> make(T data, HashConsNode<T>... children){
+		//the node copies the varargs array, which does not leave this method
+		HashConsNode<T> node = new HashConsNode<T>(data, children);
+		HashConsNode<T> shared = table.get(node);
+		if(shared != null){
+			hits++;
+			return shared;
+		}
+		table.put(node, node);
+		return node;
+	}
+
+	/**
+	 * Intern a whole mutable tree, bottom up
+	 * @param tn the root of the tree to intern
+	 * @return the shared immutable equivalent
+	 */
+	HashConsNode<T> intern(TreeNode<T> tn){
+		List<HashConsNode<T>> kids = new ArrayList<HashConsNode<T>>();
+		for(TreeNode<T> c : tn.getChildren())
+			kids.add(intern(c));
+		HashConsNode<T> arr[] = kids.toArray(HashConsNode.<T>newArray(kids.size()));
+		return make(tn.getData(), arr);
+	}
+
+	/**
+	 * @return the number of distinct nodes
+	 */
+	int size(){
+		return table.size();
+	}
+
+	/**
+	 * @return the number of make() calls that returned an existing node
+	 */
+	long getHits(){
+		return hits;
+	}
+
+	/**
+	 * Forget all the nodes
+	 */
+	void clear(){
+		table.clear();
+		hits = 0;
+	}
+}
@@ -0,0 +1,1203 @@
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Self-specialising AST interpreter, an alternative to the bytecode {@link VM}.
+ * <p>
+ * The program is parsed into a tree of executable nodes, which are
+ * {@link TreeNode}s so that the tree can be printed. A node rewrites
+ * itself in its parent from what it sees at run time:
+ * <ul>
+ * <li>a call is first uninitialised; on its first execution, a call whose
+ * argument is a variable minus a constant (fac(n-1)) becomes a call that
+ * computes the argument from the frame slot directly</li>
+ * <li>a comparison against a constant becomes a node with the constant
+ * in a final field</li>
+ * <li>arithmetic starts on ints; a node that sees an overflow (or a child
+ * that returns a number larger than an int) generalises itself into a
+ * node computing on Integer, Long or BigInteger</li>
+ * </ul>
+ * The arithmetic is exact like in {@link ExactVM}: the results are the
+ * ones of the VM as long as they fit an int. A node only goes from the
+ * specialised form to the general one, so the tree stabilises quickly:
+ * the constants, slots and operators are final fields and a child field
+ * only changes on a rewrite. Expressions are grouped to the left, as in
+ * grammar-v1 (a * b / c is (a * b) / c).
+ * <p>
+ * A tree is not thread safe.
+ */
+public class MiniAst {
+	private final AstFunction function;
+
+	public static void main(String[] args) throws Error {
+		String facSource = "fac(n) { if (n == 0) return 1; else return n * fac(n-1); }";
+		MiniAst fac = compile(facSource);
+		for(String s : fac.toPrettifiedStrings())
+			System.out.println(s);
+		System.out.println("fac(10) = " + fac.exec(10));
+		for(String s : fac.toPrettifiedStrings())
+			System.out.println(s);
+		System.out.println(fac.getRewriteCount() + " rewrites");
+		MiniScript facScript = MiniScript.compile(facSource);
+		ExactVM exact = new ExactVM(facScript.getCode(), facScript.getFrameSize(), MiniVM.stack_max);
+		for(int n : new int[] { 12, 13, 21, 25 })
+			System.out.println(String.format("fac(%d) : VM %d, ExactVM %s, MiniAst %s",
+					n, facScript.eval(n), exact.exec(n), fac.exec(n)));
+		System.out.println(fac.getRewriteCount() + " rewrites after the overflows");
+
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		//a fresh tree that never overflows, like the int VM
+		benchmark("200000 x fac(12)", facScript, compile(facSource), 12, 200000);
+		String loopSource = "loop(n) { i = 0; s = 0; while (i < n) { s = s + i; i = i + 1; } return s; }";
+		benchmark("2000 x loop(10000)", MiniScript.compile(loopSource), compile(loopSource), 10000, 2000);
+		MiniMetrics.get().setEnabled(metrics);
+	}
+
+	private static void benchmark(String title, MiniScript ms, MiniAst ast, int arg, int count) throws Error {
+		VM vm = ms.newVM();
+		ExactVM exact = new ExactVM(ms.getCode(), ms.getFrameSize(), MiniVM.stack_max);
+		long tv = 0, tx = 0, ta = 0;
+		Number r1 = 0, r2 = 0, r3 = 0;
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			for(int i = 0; i < count; i++)
+				r1 = vm.exec(arg);
+			long t1 = System.nanoTime();
+			for(int i = 0; i < count; i++)
+				r2 = exact.exec(arg);
+			long t2 = System.nanoTime();
+			for(int i = 0; i < count; i++)
+				r3 = ast.exec(arg);
+			long t3 = System.nanoTime();
+			tv = t1 - t0;
+			tx = t2 - t1;
+			ta = t3 - t2;
+		}
+		System.out.println(String.format("%s : VM %d ms, ExactVM %d ms, MiniAst %d ms, results %s / %s / %s",
+				title, tv / 1000000, tx / 1000000, ta / 1000000, r1, r2, r3));
+	}
+
+	MiniAst(AstFunction function) {
+		this.function = function;
+	}
+
+	/**
+	 * @param source the Mini source code
+	 * @throws Error on syntax errors
+	 */
+	static MiniAst compile(String source) throws Error {
+		return compile(new StringReader(source));
+	}
+
+	static MiniAst compile(Reader source) throws Error {
+		SymTab symbols = new SymTab();
+		return new MiniAst(new AstParser(new Lexer(source, symbols), symbols).program());
+	}
+
+	/**
+	 * Set where the print statement writes
+	 * @param out the writer, null to discard
+	 */
+	public void setOutput(PrintWriter out) {
+		function.out = out == null ? NullSink.INSTANCE : new WriterSink(out);
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out) {
+		function.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * Run the function
+	 *
+	 * @param arg the function argument
+	 * @return the result : an Integer, or a Long or a BigInteger if it
+	 * does not fit
+	 * @throws Error
+	 */
+	Number exec(int arg) throws Error {
+		try {
+			return function.callInt(arg);
+		} catch (AstUnexpected e) {
+			return (Number) e.value;
+		} catch (AstNoReturn e) {
+			throw new Error(e.getMessage());
+		} catch (ArithmeticException e) {
+			throw new Error("division by zero");
+		} catch (StackOverflowError e) {
+			throw new Error("stack overflow");
+		}
+	}
+
+	/**
+	 * @return the number of node rewrites so far
+	 */
+	int getRewriteCount() {
+		return function.rewrites;
+	}
+
+	String[] toPrettifiedStrings() {
+		return function.toPrettifiedStrings();
+	}
+}
+
+/**
+ * Parser of the grammar into a tree of nodes
+ */
+class AstParser {
+	private final Lexer lx;
+	private final SymTab symbols;
+	private Token curToken;
+	private AstFunction fn;
+
+	AstParser(Lexer lex, SymTab symbols) {
+		this.lx = lex;
+		this.symbols = symbols;
+	}
+
+	AstFunction program() throws Error {
+		next();
+		match(Token.T_id);
+		match(Token.T_lbr);
+		int param = lx.getID();
+		match(Token.T_id);
+		match(Token.T_rbr);
+		fn = new AstFunction(symbols.getName(0) + "(" + symbols.getName(param) + ")");
+		AstStmt body = block();
+		fn.setBody(body, symbols.getCount());
+		return fn;
+	}
+
+	private AstStmt block() throws Error {
+		match(Token.T_clb);
+		List<AstStmt> list = new ArrayList<AstStmt>();
+		while (curToken != Token.T_crb)
+			list.add(statement());
+		match(Token.T_crb);
+		return new AstBlock(list.toArray(new AstStmt[list.size()]));
+	}
+
+	private AstStmt statement() throws Error {
+		AstStmt s;
+		switch (curToken) {
+			case T_id:
+				int adr = lx.getID();
+				next();
+				match(Token.T_ass);
+				s = new AstAssign(adr, symbols.getName(adr), expression());
+				match(Token.T_sem);
+				return s;
+			case T_if:
+				next();
+				AstCond c = condition();
+				AstStmt then = statement();
+				match(Token.T_else);
+				return new AstIf(c, then, statement());
+			case T_while:
+				next();
+				c = condition();
+				return new AstWhile(c, statement());
+			case T_return:
+				next();
+				s = new AstReturn(expression());
+				match(Token.T_sem);
+				return s;
+			case T_print:
+				next();
+				s = new AstPrint(fn, expression());
+				match(Token.T_sem);
+				return s;
+			case T_clb:
+				return block();
+			case T_sem:
+				next();
+				return new AstBlock(new AstStmt[0]);
+			default:
+				throw new Error("statement " + curToken);
+		}
+	}
+
+	private AstCond condition() throws Error {
+		match(Token.T_lbr);
+		AstExpr left = expression();
+		Token rop = curToken;
+		next();
+		AstExpr right = expression();
+		match(Token.T_rbr);
+		switch (rop) {
+			case T_eql:
+				return new AstCompare('=', left, right);
+			case T_neq:
+				return new AstCompare('!', left, right);
+			case T_grt:
+				return new AstCompare('>', left, right);
+			case T_les:
+				return new AstCompare('<', left, right);
+			default:
+				throw new Error("condition " + curToken);
+		}
+	}
+
+	private AstExpr expression() throws Error {
+		AstExpr e = term();
+		while (curToken == Token.T_add || curToken == Token.T_sub) {
+			Token op = curToken;
+			next();
+			if(op == Token.T_add)
+				e = new AstAddInt(e, term());
+			else
+				e = new AstSubInt(e, term());
+		}
+		return e;
+	}
+
+	private AstExpr term() throws Error {
+		AstExpr e = factor();
+		while (curToken == Token.T_mul || curToken == Token.T_div) {
+			Token op = curToken;
+			next();
+			if(op == Token.T_mul)
+				e = new AstMulInt(e, factor());
+			else
+				e = new AstDivInt(e, factor());
+		}
+		return e;
+	}
+
+	private AstExpr factor() throws Error {
+		AstExpr e;
+		switch (curToken) {
+			case T_num:
+				e = new AstConst(lx.getNumeric());
+				next();
+				return e;
+			case T_id:
+				int id = lx.getID();
+				next();
+				if(curToken != Token.T_lbr)
+					return new AstLocal(id, symbols.getName(id));
+				next();
+				e = new AstCall(fn, expression());
+				match(Token.T_rbr);
+				return e;
+			case T_lbr:
+				next();
+				e = expression();
+				match(Token.T_rbr);
+				return e;
+			default:
+				throw new Error("expression " + curToken);
+		}
+	}
+
+	private void next() throws Error {
+		curToken = lx.scan();
+	}
+
+	private void match(Token t) throws Error {
+		if (curToken == t)
+			next();
+		else
+			throw new Error("syntax " + curToken);
+	}
+}
+
+/**
+ * Node of the executable tree
+ */
+abstract class AstNode extends TreeNode<String> {
+	AstNode(String label) {
+		super(label);
+	}
+
+	/**
+	 * Make a node a child of this one
+	 * @return the child
+	 */
+	<N extends AstNode> N adopt(N child) {
+		addChild(child);
+		return child;
+	}
+
+	/**
+	 * Replace a child field, for {@link #replace(AstNode)}
+	 */
+	void replaceChild(AstNode old, AstNode node) {
+		throw new IllegalStateException(this + " has no child " + old);
+	}
+
+	/**
+	 * Replace this node by a specialised or generalised one in its parent
+	 * @return the new node
+	 */
+	<N extends AstNode> N replace(N node) {
+		AstNode p = (AstNode) parent;
+		p.replaceChild(this, node);
+		for(int i = 0; i < p.children.size(); i++)
+			if(p.children.get(i) == this)
+				p.children.set(i, node);
+		node.parent = p;
+		parent = null;
+		TreeNode<String> root = p;
+		while (root.parent != null)
+			root = root.parent;
+		((AstFunction) root).rewrites++;
+		return node;
+	}
+}
+
+/**
+ * Local variables of a call. A slot holds an int, unless its objs entry
+ * holds a larger number.
+ */
+final class AstFrame {
+	final int ints[];
+	Object objs[];		// allocated with the first value that is not an int
+	int intResult;
+	Object result;		// the returned value if it is not an int
+
+	AstFrame(int size) {
+		ints = new int[size];
+	}
+
+	boolean isInt(int slot) {
+		return objs == null || objs[slot] == null;
+	}
+
+	Object get(int slot) {
+		return isInt(slot) ? Integer.valueOf(ints[slot]) : objs[slot];
+	}
+
+	void setInt(int slot, int value) {
+		ints[slot] = value;
+		if(objs != null)
+			objs[slot] = null;
+	}
+
+	void set(int slot, Object value) {
+		if(value instanceof Integer)
+			setInt(slot, (Integer) value);
+		else {
+			if(objs == null)
+				objs = new Object[ints.length];
+			objs[slot] = value;
+		}
+	}
+}
+
+/**
+ * Thrown by a node expected to return an int when the value does not fit
+ */
+final class AstUnexpected extends Exception {
+	private static final long serialVersionUID = 1L;
+	final Object value;
+
+	AstUnexpected(Object value) {
+		super(null, null, false, false);
+		this.value = value;
+	}
+}
+
+/**
+ * A call reached the end of the function without a return, unchecked so
+ * that it goes up through the nested calls to exec()
+ */
+final class AstNoReturn extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	AstNoReturn() {
+		super("end of the function reached without return", null, false, false);
+	}
+}
+
+/**
+ * Exact arithmetic on Integer, Long and BigInteger, the results are
+ * Integer when they fit
+ */
+final class AstArith {
+	private AstArith() {
+	}
+
+	static Object apply(char op, Object a, Object b) {
+		if(!(a instanceof BigInteger) && !(b instanceof BigInteger)){
+			long x = ((Number) a).longValue(), y = ((Number) b).longValue();
+			try {
+				switch (op) {
+					case '+':
+						return normalize(Math.addExact(x, y));
+					case '-':
+						return normalize(Math.subtractExact(x, y));
+					case '*':
+						return normalize(Math.multiplyExact(x, y));
+					default:
+						if(x == Long.MIN_VALUE && y == -1)
+							break;
+						return normalize(x / y);
+				}
+			} catch (ArithmeticException e) {
+				//overflow : go on in BigInteger
+			}
+		}
+		BigInteger x = big(a), y = big(b);
+		switch (op) {
+			case '+':
+				return normalize(x.add(y));
+			case '-':
+				return normalize(x.subtract(y));
+			case '*':
+				return normalize(x.multiply(y));
+			default:
+				return normalize(x.divide(y));
+		}
+	}
+
+	static int compare(Object a, Object b) {
+		if(!(a instanceof BigInteger) && !(b instanceof BigInteger))
+			return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+		return big(a).compareTo(big(b));
+	}
+
+	private static BigInteger big(Object v) {
+		return v instanceof BigInteger ? (BigInteger) v : BigInteger.valueOf(((Number) v).longValue());
+	}
+
+	private static Object normalize(long v) {
+		return v == (int) v ? (Object) Integer.valueOf((int) v) : (Object) Long.valueOf(v);
+	}
+
+	private static Object normalize(BigInteger v) {
+		return v.bitLength() < 64 ? normalize(v.longValue()) : v;
+	}
+}
+
+/**
+ * Root of the tree : the function and its frame layout
+ */
+final class AstFunction extends AstNode {
+	private AstStmt body;
+	private int frameSize;
+	OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+	int rewrites;
+
+	AstFunction(String label) {
+		super(label);
+	}
+
+	void setBody(AstStmt body, int frameSize) {
+		this.body = adopt(body);
+		this.frameSize = Math.max(2, frameSize);	// the argument is in slot 1
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		body = (AstStmt) node;
+	}
+
+	int callInt(int arg) throws AstUnexpected {
+		AstFrame f = new AstFrame(frameSize);
+		f.ints[1] = arg;
+		if(!body.execute(f))
+			throw new AstNoReturn();
+		if(f.result != null)
+			throw new AstUnexpected(f.result);
+		return f.intResult;
+	}
+
+	Object call(Object arg) {
+		AstFrame f = new AstFrame(frameSize);
+		f.set(1, arg);
+		if(!body.execute(f))
+			throw new AstNoReturn();
+		return f.result != null ? f.result : Integer.valueOf(f.intResult);
+	}
+}
+
+abstract class AstStmt extends AstNode {
+	AstStmt(String label) {
+		super(label);
+	}
+
+	/**
+	 * @return true if a return statement was executed
+	 */
+	abstract boolean execute(AstFrame f);
+}
+
+final class AstBlock extends AstStmt {
+	private final AstStmt stmts[];
+
+	AstBlock(AstStmt stmts[]) {
+		super("{}");
+		this.stmts = stmts;
+		for(AstStmt s : stmts)
+			adopt(s);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		for(int i = 0; i < stmts.length; i++)
+			if(stmts[i] == old)
+				stmts[i] = (AstStmt) node;
+	}
+
+	@Override
+	boolean execute(AstFrame f) {
+		for(AstStmt s : stmts)
+			if(s.execute(f))
+				return true;
+		return false;
+	}
+}
+
+final class AstAssign extends AstStmt {
+	private final int slot;
+	private AstExpr value;
+
+	AstAssign(int slot, String name, AstExpr value) {
+		super(name + " =");
+		this.slot = slot;
+		this.value = adopt(value);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		value = (AstExpr) node;
+	}
+
+	@Override
+	boolean execute(AstFrame f) {
+		try {
+			f.setInt(slot, value.executeInt(f));
+		} catch (AstUnexpected e) {
+			f.set(slot, e.value);
+		}
+		return false;
+	}
+}
+
+final class AstIf extends AstStmt {
+	private AstCond cond;
+	private AstStmt then, otherwise;
+
+	AstIf(AstCond cond, AstStmt then, AstStmt otherwise) {
+		super("if");
+		this.cond = adopt(cond);
+		this.then = adopt(then);
+		this.otherwise = adopt(otherwise);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		if(cond == old)
+			cond = (AstCond) node;
+		else if(then == old)
+			then = (AstStmt) node;
+		else
+			otherwise = (AstStmt) node;
+	}
+
+	@Override
+	boolean execute(AstFrame f) {
+		return cond.executeBool(f) ? then.execute(f) : otherwise.execute(f);
+	}
+}
+
+final class AstWhile extends AstStmt {
+	private AstCond cond;
+	private AstStmt body;
+
+	AstWhile(AstCond cond, AstStmt body) {
+		super("while");
+		this.cond = adopt(cond);
+		this.body = adopt(body);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		if(cond == old)
+			cond = (AstCond) node;
+		else
+			body = (AstStmt) node;
+	}
+
+	@Override
+	boolean execute(AstFrame f) {
+		while (cond.executeBool(f))
+			if(body.execute(f))
+				return true;
+		return false;
+	}
+}
+
+final class AstReturn extends AstStmt {
+	private AstExpr value;
+
+	AstReturn(AstExpr value) {
+		super("return");
+		this.value = adopt(value);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		value = (AstExpr) node;
+	}
+
+	@Override
+	boolean execute(AstFrame f) {
+		try {
+			f.intResult = value.executeInt(f);
+			f.result = null;
+		} catch (AstUnexpected e) {
+			f.result = e.value;
+		}
+		return true;
+	}
+}
+
+final class AstPrint extends AstStmt {
+	private final AstFunction fn;
+	private AstExpr value;
+
+	AstPrint(AstFunction fn, AstExpr value) {
+		super("print");
+		this.fn = fn;
+		this.value = adopt(value);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		value = (AstExpr) node;
+	}
+
+	@Override
+	boolean execute(AstFrame f) {
+		fn.out.print((Number) value.execute(f));
+		return false;
+	}
+}
+
+abstract class AstCond extends AstNode {
+	final char op;		// = ! < >
+
+	AstCond(char op, String label) {
+		super(label);
+		this.op = op;
+	}
+
+	abstract boolean executeBool(AstFrame f);
+
+	static boolean test(char op, int a, int b) {
+		switch (op) {
+			case '=':
+				return a == b;
+			case '!':
+				return a != b;
+			case '<':
+				return a < b;
+			default:
+				return a > b;
+		}
+	}
+
+	static boolean test(char op, Object a, Object b) {
+		return test(op, AstArith.compare(a, b), 0);
+	}
+
+	/**
+	 * Generalise once the operands are evaluated, unless a recursive call
+	 * already replaced this node
+	 */
+	boolean generalize(AstExpr left, AstExpr right, Object a, Object b) {
+		if(parent != null)
+			replace(new AstCmpGeneric(op, left, right));
+		return test(op, a, b);
+	}
+
+	static String symbol(char op) {
+		return op == '=' ? "==" : op == '!' ? "!=" : String.valueOf(op);
+	}
+}
+
+/**
+ * Comparison not executed yet
+ */
+final class AstCompare extends AstCond {
+	private final AstExpr left, right;
+
+	AstCompare(char op, AstExpr left, AstExpr right) {
+		super(op, symbol(op) + " ?");
+		this.left = adopt(left);
+		this.right = adopt(right);
+	}
+
+	@Override
+	boolean executeBool(AstFrame f) {
+		if(right instanceof AstConst)
+			return replace(new AstCmpConst(op, left, ((AstConst) right).value)).executeBool(f);
+		return replace(new AstCmpInt(op, left, right)).executeBool(f);
+	}
+}
+
+final class AstCmpConst extends AstCond {
+	private AstExpr left;
+	private final int value;
+
+	AstCmpConst(char op, AstExpr left, int value) {
+		super(op, symbol(op) + " " + value);
+		this.left = adopt(left);
+		this.value = value;
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		left = (AstExpr) node;
+	}
+
+	@Override
+	boolean executeBool(AstFrame f) {
+		int a;
+		try {
+			a = left.executeInt(f);
+		} catch (AstUnexpected e) {
+			return generalize(left, new AstConst(value), e.value, value);
+		}
+		return test(op, a, value);
+	}
+}
+
+final class AstCmpInt extends AstCond {
+	private AstExpr left, right;
+
+	AstCmpInt(char op, AstExpr left, AstExpr right) {
+		super(op, symbol(op) + " int");
+		this.left = adopt(left);
+		this.right = adopt(right);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		if(left == old)
+			left = (AstExpr) node;
+		else
+			right = (AstExpr) node;
+	}
+
+	@Override
+	boolean executeBool(AstFrame f) {
+		int a, b;
+		try {
+			a = left.executeInt(f);
+		} catch (AstUnexpected e) {
+			return generalize(left, right, e.value, right.execute(f));
+		}
+		try {
+			b = right.executeInt(f);
+		} catch (AstUnexpected e) {
+			return generalize(left, right, a, e.value);
+		}
+		return test(op, a, b);
+	}
+}
+
+final class AstCmpGeneric extends AstCond {
+	private AstExpr left, right;
+
+	AstCmpGeneric(char op, AstExpr left, AstExpr right) {
+		super(op, symbol(op) + " generic");
+		this.left = adopt(left);
+		this.right = adopt(right);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		if(left == old)
+			left = (AstExpr) node;
+		else
+			right = (AstExpr) node;
+	}
+
+	@Override
+	boolean executeBool(AstFrame f) {
+		return test(op, left.execute(f), right.execute(f));
+	}
+}
+
+abstract class AstExpr extends AstNode {
+	AstExpr(String label) {
+		super(label);
+	}
+
+	/**
+	 * @return the value, an Integer when it fits
+	 */
+	abstract Object execute(AstFrame f);
+
+	/**
+	 * @throws AstUnexpected with the value if it does not fit an int
+	 */
+	int executeInt(AstFrame f) throws AstUnexpected {
+		Object v = execute(f);
+		if(v instanceof Integer)
+			return (Integer) v;
+		throw new AstUnexpected(v);
+	}
+}
+
+final class AstConst extends AstExpr {
+	final int value;
+
+	AstConst(int value) {
+		super(String.valueOf(value));
+		this.value = value;
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		return value;
+	}
+
+	@Override
+	int executeInt(AstFrame f) {
+		return value;
+	}
+}
+
+final class AstLocal extends AstExpr {
+	final int slot;
+
+	AstLocal(int slot, String name) {
+		super(name);
+		this.slot = slot;
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		return f.get(slot);
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		if(!f.isInt(slot))
+			throw new AstUnexpected(f.objs[slot]);
+		return f.ints[slot];
+	}
+}
+
+/**
+ * Arithmetic on ints, generalised on the first value that does not fit
+ */
+abstract class AstIntBinary extends AstExpr {
+	final char op;
+	AstExpr left, right;
+
+	AstIntBinary(char op, AstExpr left, AstExpr right) {
+		super(op + " int");
+		this.op = op;
+		this.left = adopt(left);
+		this.right = adopt(right);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		if(left == old)
+			left = (AstExpr) node;
+		else
+			right = (AstExpr) node;
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		try {
+			return executeInt(f);
+		} catch (AstUnexpected e) {
+			return e.value;
+		}
+	}
+
+	/**
+	 * Generalise, the operands are already evaluated
+	 * @return the exception carrying the result
+	 */
+	AstUnexpected generalize(Object a, Object b) {
+		if(parent == null)		// already replaced during a recursive call
+			return new AstUnexpected(AstArith.apply(op, a, b));
+		return new AstUnexpected(replace(new AstGeneric(op, left, right)).apply(a, b));
+	}
+
+	/**
+	 * Generalise when the left operand did not fit
+	 */
+	AstUnexpected leftUnexpected(AstUnexpected e, AstFrame f) {
+		return generalize(e.value, right.execute(f));
+	}
+}
+
+final class AstAddInt extends AstIntBinary {
+	AstAddInt(AstExpr left, AstExpr right) {
+		super('+', left, right);
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		int a, b;
+		try {
+			a = left.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw leftUnexpected(e, f);
+		}
+		try {
+			b = right.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw generalize(a, e.value);
+		}
+		int r = a + b;
+		if(((a ^ r) & (b ^ r)) < 0)
+			throw generalize(a, b);
+		return r;
+	}
+}
+
+final class AstSubInt extends AstIntBinary {
+	AstSubInt(AstExpr left, AstExpr right) {
+		super('-', left, right);
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		int a, b;
+		try {
+			a = left.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw leftUnexpected(e, f);
+		}
+		try {
+			b = right.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw generalize(a, e.value);
+		}
+		int r = a - b;
+		if(((a ^ b) & (a ^ r)) < 0)
+			throw generalize(a, b);
+		return r;
+	}
+}
+
+final class AstMulInt extends AstIntBinary {
+	AstMulInt(AstExpr left, AstExpr right) {
+		super('*', left, right);
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		int a, b;
+		try {
+			a = left.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw leftUnexpected(e, f);
+		}
+		try {
+			b = right.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw generalize(a, e.value);
+		}
+		long r = (long) a * b;
+		if((int) r != r)
+			throw generalize(a, b);
+		return (int) r;
+	}
+}
+
+final class AstDivInt extends AstIntBinary {
+	AstDivInt(AstExpr left, AstExpr right) {
+		super('/', left, right);
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		int a, b;
+		try {
+			a = left.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw leftUnexpected(e, f);
+		}
+		try {
+			b = right.executeInt(f);
+		} catch (AstUnexpected e) {
+			throw generalize(a, e.value);
+		}
+		if(a == Integer.MIN_VALUE && b == -1)
+			throw generalize(a, b);
+		return a / b;
+	}
+}
+
+final class AstGeneric extends AstExpr {
+	private final char op;
+	private AstExpr left, right;
+
+	AstGeneric(char op, AstExpr left, AstExpr right) {
+		super(op + " generic");
+		this.op = op;
+		this.left = adopt(left);
+		this.right = adopt(right);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		if(left == old)
+			left = (AstExpr) node;
+		else
+			right = (AstExpr) node;
+	}
+
+	Object apply(Object a, Object b) {
+		return AstArith.apply(op, a, b);
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		Object a = left.execute(f);
+		return apply(a, right.execute(f));
+	}
+}
+
+/**
+ * Call not executed yet
+ */
+final class AstCall extends AstExpr {
+	private final AstFunction fn;
+	private final AstExpr arg;
+
+	AstCall(AstFunction fn, AstExpr arg) {
+		super("call ?");
+		this.fn = fn;
+		this.arg = adopt(arg);
+	}
+
+	private AstExpr specialize() {
+		if(arg instanceof AstSubInt){
+			AstSubInt sub = (AstSubInt) arg;
+			if(sub.left instanceof AstLocal && sub.right instanceof AstConst)
+				return replace(new AstCallDec(fn, arg, ((AstLocal) sub.left).slot, ((AstConst) sub.right).value));
+		}
+		return replace(new AstCallInt(fn, arg));
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		return specialize().execute(f);
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		return specialize().executeInt(f);
+	}
+}
+
+/**
+ * Call whose argument is a variable minus a constant, computed from the
+ * frame without executing the argument node while it fits an int
+ */
+final class AstCallDec extends AstExpr {
+	private final AstFunction fn;
+	private final AstExpr arg;
+	private final int slot, dec;
+
+	AstCallDec(AstFunction fn, AstExpr arg, int slot, int dec) {
+		super("call " + arg.getChildAt(0).getData() + " - " + dec);
+		this.fn = fn;
+		this.arg = adopt(arg);
+		this.slot = slot;
+		this.dec = dec;
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		try {
+			return executeInt(f);
+		} catch (AstUnexpected e) {
+			return e.value;
+		}
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		if(f.isInt(slot)){
+			int a = f.ints[slot], r = a - dec;
+			if(((a ^ dec) & (a ^ r)) >= 0)
+				return fn.callInt(r);
+		}
+		//nothing evaluated yet : the general call starts over
+		return replace(new AstCallInt(fn, arg)).executeInt(f);
+	}
+}
+
+final class AstCallInt extends AstExpr {
+	private final AstFunction fn;
+	private AstExpr arg;
+
+	AstCallInt(AstFunction fn, AstExpr arg) {
+		super("call int");
+		this.fn = fn;
+		this.arg = adopt(arg);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		arg = (AstExpr) node;
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		try {
+			return executeInt(f);
+		} catch (AstUnexpected e) {
+			return e.value;
+		}
+	}
+
+	@Override
+	int executeInt(AstFrame f) throws AstUnexpected {
+		int a;
+		try {
+			a = arg.executeInt(f);
+		} catch (AstUnexpected e) {
+			if(parent != null)		// not replaced during a recursive call
+				replace(new AstCallGeneric(fn, arg));
+			Object r = fn.call(e.value);
+			if(r instanceof Integer)
+				return (Integer) r;
+			throw new AstUnexpected(r);
+		}
+		return fn.callInt(a);
+	}
+}
+
+final class AstCallGeneric extends AstExpr {
+	private final AstFunction fn;
+	private AstExpr arg;
+
+	AstCallGeneric(AstFunction fn, AstExpr arg) {
+		super("call generic");
+		this.fn = fn;
+		this.arg = adopt(arg);
+	}
+
+	@Override
+	void replaceChild(AstNode old, AstNode node) {
+		arg = (AstExpr) node;
+	}
+
+	@Override
+	Object execute(AstFrame f) {
+		return fn.call(arg.execute(f));
+	}
+}
@@ -0,0 +1,253 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Batch compiler : compile many .mini scripts in one JVM, in parallel.
+ * <p>
+ * Each argument is a file, a directory (searched recursively for .mini
+ * files) or a glob like "scripts/**&#47;*.mini". The scripts are compiled
+ * on a work stealing ForkJoinPool, each one to a .mvc file (see
+ * {@link MiniScript#save}) next to the source or under the -o directory.
+ * An error in a script is reported and the batch goes on.
+ * <p>
+ * The compiler is one pass (lexing, parsing and code emission are
+ * interleaved), so the reported phases are read / compile / write.
+ */
+public class MiniBatch {
+	private File outDir;
+	private int codeMax = MiniVM.code_max;
+	private boolean quiet;
+
+	private final AtomicInteger ok = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong readTime = new AtomicLong();
+	private final AtomicLong compileTime = new AtomicLong();
+	private final AtomicLong writeTime = new AtomicLong();
+	private final List<String> diagnostics = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * A script to compile, with the root it was found from
+	 */
+	static class Job {
+		final Path source;
+		final Path root;
+
+		Job(Path source, Path root) {
+			this.source = source;
+			this.root = root;
+		}
+	}
+
+	public static void main(String args[]) {
+		if(args.length == 0)
+			usage();
+		MiniBatch batch = new MiniBatch();
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Job> jobs = new ArrayList<Job>();
+		try {
+			for(int i = 0; i < args.length; i++){
+				boolean valued = args[i].equals("-o") || args[i].equals("-j") || args[i].equals("-c");
+				if(valued && i + 1 == args.length)
+					usage();
+				if(args[i].equals("-o"))
+					batch.outDir = new File(args[++i]);
+				else if(args[i].equals("-j"))
+					threads = positive(args[++i]);
+				else if(args[i].equals("-c"))
+					batch.codeMax = positive(args[++i]);
+				else if(args[i].equals("-q"))
+					batch.quiet = true;
+				else
+					collect(args[i], jobs);
+			}
+		} catch (NumberFormatException e) {
+			usage();
+		} catch (IOException e) {
+			System.out.println("error " + e.getMessage());
+			System.exit(1);
+		}
+
+		long t0 = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		pool.invoke(batch.new CompileAll(jobs, 0, jobs.size()));
+		pool.shutdown();
+		long elapsed = System.nanoTime() - t0;
+
+		batch.report(jobs.size(), threads, elapsed);
+		System.exit(batch.failed.get() > 0 ? 1 : 0);
+	}
+
+	private static void usage() {
+		System.out.println("Usage : MiniBatch [-o outdir] [-j threads] [-c code_max] [-q] <file|dir|glob>...");
+		System.exit(1);
+	}
+
+	/**
+	 * @return the value of a count option
+	 * @throws NumberFormatException if it is not a number above 0
+	 */
+	private static int positive(String value) {
+		int n = Integer.parseInt(value);
+		if(n <= 0)
+			throw new NumberFormatException(value);
+		return n;
+	}
+
+	/**
+	 * Add the scripts designated by an argument
+	 */
+	static void collect(String arg, List<Job> jobs) throws IOException {
+		int glob = firstGlobChar(arg);
+		if(glob < 0){
+			Path p = Paths.get(arg);
+			if(Files.isDirectory(p))
+				walk(p, FileSystems.getDefault().getPathMatcher("glob:**.mini"), jobs);
+			else
+				jobs.add(new Job(p, p.toAbsolutePath().getParent()));
+		} else {
+			//search from the last directory before the first wildcard
+			int slash = arg.lastIndexOf('/', glob);
+			Path base = Paths.get(slash < 0 ? "." : arg.substring(0, slash + 1));
+			walk(base, FileSystems.getDefault().getPathMatcher("glob:" + arg), jobs);
+		}
+	}
+
+	private static int firstGlobChar(String s) {
+		for(int i = 0; i < s.length(); i++)
+			if("*?[{".indexOf(s.charAt(i)) >= 0)
+				return i;
+		return -1;
+	}
+
+	private static void walk(final Path base, final PathMatcher matcher, final List<Job> jobs) throws IOException {
+		Stream<Path> files = Files.walk(base);
+		try {
+			for(Object o : files.toArray()){
+				Path p = (Path) o;
+				Path rel = base.equals(Paths.get(".")) ? base.relativize(p) : p;
+				if(Files.isRegularFile(p) && (matcher.matches(p) || matcher.matches(rel)))
+					jobs.add(new Job(p, base));
+			}
+		} finally {
+			files.close();
+		}
+	}
+
+	/**
+	 * Split the job list until a single script is left, idle workers
+	 * steal the other halves
+	 */
+	class CompileAll extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Job> jobs;
+		private final int from, to;
+
+		CompileAll(List<Job> jobs, int from, int to) {
+			this.jobs = jobs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= 1){
+				if(to > from)
+					compileOne(jobs.get(from));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new CompileAll(jobs, from, mid), new CompileAll(jobs, mid, to));
+		}
+	}
+
+	/**
+	 * Compile a single script, never throws
+	 */
+	void compileOne(Job job) {
+		try {
+			long t0 = System.nanoTime();
+			byte src[] = Files.readAllBytes(job.source);
+			long t1 = System.nanoTime();
+			MiniScript ms = MiniScript.compile(new StringReader(new String(src, StandardCharsets.UTF_8)),
+					codeMax, MiniVM.stack_max);
+			long t2 = System.nanoTime();
+			File out = target(job);
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+			try {
+				ms.save(dos);
+			} finally {
+				dos.close();
+			}
+			long t3 = System.nanoTime();
+			readTime.addAndGet(t1 - t0);
+			compileTime.addAndGet(t2 - t1);
+			writeTime.addAndGet(t3 - t2);
+			bytes.addAndGet(src.length);
+			ok.incrementAndGet();
+		} catch (Error e) {
+			fail(job, "error " + e.getMessage());
+		} catch (IOException e) {
+			fail(job, "IO " + e.getMessage());
+		} catch (RuntimeException e) {
+			fail(job, "internal " + e);
+		} catch (StackOverflowError e) {
+			fail(job, "too deeply nested");
+		}
+	}
+
+	private void fail(Job job, String msg) {
+		failed.incrementAndGet();
+		diagnostics.add(job.source + ": " + msg);
+	}
+
+	/**
+	 * The .mvc file of a script, the directory tree under the root
+	 * is mirrored in the -o directory
+	 */
+	private File target(Job job) throws IOException {
+		String name = job.source.getFileName().toString();
+		if(name.endsWith(".mini"))
+			name = name.substring(0, name.length() - 5);
+		name += ".mvc";
+		if(outDir == null)
+			return job.source.resolveSibling(name).toFile();
+		Path rel = job.root.toAbsolutePath().normalize().relativize(job.source.toAbsolutePath().normalize());
+		Path dest = outDir.toPath().resolve(rel).resolveSibling(name);
+		Files.createDirectories(dest.getParent());
+		return dest.toFile();
+	}
+
+	private void report(int count, int threads, long elapsed) {
+		Collections.sort(diagnostics);
+		for(String d : diagnostics)
+			System.out.println(d);
+		if(quiet && failed.get() == 0)
+			return;
+		double secs = elapsed / 1e9;
+		System.out.println(String.format("%d scripts (%d ok, %d failed), %d bytes, %d threads",
+				count, ok.get(), failed.get(), bytes.get(), threads));
+		System.out.println(String.format("wall %.1f ms, %.0f scripts/s, %.0f us/script",
+				elapsed / 1e6, count / secs, count == 0 ? 0.0 : elapsed / 1e3 / count));
+		System.out.println(String.format("cpu per phase : read %.1f ms, compile %.1f ms, write %.1f ms",
+				readTime.get() / 1e6, compileTime.get() / 1e6, writeTime.get() / 1e6));
+	}
+}
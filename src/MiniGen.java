@@ -0,0 +1,356 @@
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * Seeded generator of valid Mini programs, and a scalability benchmark
+ * of the compiler phases and of the VM on the generated programs.
+ * <p>
+ * A program follows grammar-v1 : every variable is assigned a constant
+ * first, then come random assignments, prints, if / else and while
+ * statements, then the return. The same seed always gives the same
+ * program. The generated programs always halt and never divide by zero :
+ * <ul>
+ * <li>a divisor is a constant from 1 to 9, and every binary expression is
+ * parenthesised, so that a program means the same for every grouping of
+ * * and / (the compilers before the left associative parser read a * b / c
+ * as a * (b / c))</li>
+ * <li>a while loop runs a counter (w1, w2... one per nesting level) that
+ * the other statements never assign, from 0 to the iteration count</li>
+ * <li>the function does not call itself</li>
+ * </ul>
+ * The size is the number of statements after the initialisations, the
+ * nesting depth is reached by the first statement of every compound
+ * statement, and loop intensity is the iteration count of each while
+ * (0 for no loops), so nested loops multiply it.
+ * <pre>
+ * MiniGen [-seed n] [-s statements] [-i identifiers] [-d depth] [-l iterations] [-print]
+ * </pre>
+ * With -print the program is written to the standard output, otherwise
+ * each parameter is doubled in turn from the given values and the time
+ * and allocated memory of lexing, compiling and running are reported.
+ */
+public class MiniGen {
+	static final long RUN_BUDGET = 10000000;
+	static final int REPEAT = 5;
+	static final int SWEEP = 6;
+
+	private static final String ROP[] = { "==", "!=", "<", ">" };
+	private static final char OP[] = { '+', '-', '*', '/' };
+
+	private final Random rnd;
+	private final int statements;
+	private final int identifiers;
+	private final int depth;
+	private final int iterations;
+	private StringBuilder sb;
+
+	public static void main(String[] args) throws Error {
+		long seed = 42;
+		int statements = 250, identifiers = 20, depth = 3, iterations = 4;
+		boolean print = false;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-seed"))
+				seed = Long.parseLong(args[++i]);
+			else if(args[i].equals("-s"))
+				statements = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-i"))
+				identifiers = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-d"))
+				depth = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-l"))
+				iterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-print"))
+				print = true;
+		}
+		if(print){
+			System.out.print(new MiniGen(seed, statements, identifiers, depth, iterations).generate());
+			return;
+		}
+
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		//warm up the JIT before the first measure
+		for(int i = 0; i < 20; i++)
+			measure(new MiniGen(seed + i, statements, identifiers, depth, iterations).generate());
+
+		String names[] = { "statements", "identifiers", "depth", "iterations" };
+		for(int p = 0; p < names.length; p++){
+			System.out.println(String.format("-- %s (statements %d, identifiers %d, depth %d, iterations %d)",
+					names[p], statements, identifiers, depth, iterations));
+			System.out.println(" value  tokens    code |  lex ms ns/tok  alloc KB | comp ms ns/tok  alloc KB"
+					+ " |  run ms ns/ins  alloc KB | cost growth lex/comp/run");
+			int v[] = { statements, identifiers, depth, iterations };
+			Result prev = null;
+			int last = 0;
+			for(int step = 0; step < SWEEP; step++){
+				String src = new MiniGen(seed, v[0], v[1], v[2], v[3]).generate();
+				Result r;
+				try {
+					r = measure(src);
+				} catch (Error e) {
+					System.out.println(String.format("%6d  failed : %s", v[p], e.getMessage()));
+					break;
+				} catch (StackOverflowError e) {
+					System.out.println(String.format("%6d  failed : Java stack overflow in the compiler", v[p]));
+					break;
+				}
+				System.out.println(String.format("%6d %7d %7d | %s | %s | %s | %s",
+						v[p], r.tokens, r.code, r.lex, r.compile, r.run, r.growth(prev, (double) v[p] / last)));
+				prev = r;
+				last = v[p];
+				v[p] = v[p] == 0 ? 1 : v[p] * 2;
+			}
+		}
+		MiniMetrics.get().setEnabled(metrics);
+	}
+
+	/**
+	 * @param seed the seed of the random choices
+	 * @param statements the number of statements besides the initialisations
+	 * @param identifiers the number of variables besides the loop counters
+	 * @param depth the nesting depth of the compound statements
+	 * @param iterations the iteration count of each while loop, 0 for no loops
+	 */
+	MiniGen(long seed, int statements, int identifiers, int depth, int iterations) {
+		this.rnd = new Random(seed);
+		this.statements = statements;
+		this.identifiers = Math.max(1, identifiers);
+		this.depth = depth;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * @return the source of the program
+	 */
+	String generate() {
+		sb = new StringBuilder();
+		sb.append("gen(n) {\n");
+		for(int i = 0; i < identifiers; i++)
+			indent(1).append('v').append(i).append(" = ").append(1 + rnd.nextInt(100)).append(";\n");
+		statements(1, statements);
+		indent(1).append("return ");
+		expression(3);
+		sb.append(";\n}\n");
+		return sb.toString();
+	}
+
+	private void statements(int level, int count) {
+		while (count > 0)
+			count -= statement(level, count, false);
+	}
+
+	/**
+	 * @param max the number of statements left
+	 * @param nest true to open a compound statement if the depth allows it
+	 * @return the number of statements generated
+	 */
+	private int statement(int level, int max, boolean nest) {
+		int kind = rnd.nextInt(10);
+		if(level >= depth || max < 3)
+			kind = kind % 6;
+		else if(nest)
+			kind = 7 + kind % 3;
+		if(kind == 9 && iterations == 0)
+			kind = 8;
+		if(kind < 6){
+			indent(level).append('v').append(rnd.nextInt(identifiers)).append(" = ");
+			expression(3);
+			sb.append(";\n");
+			return 1;
+		}
+		if(kind == 6){
+			indent(level).append("print ");
+			expression(2);
+			sb.append(";\n");
+			return 1;
+		}
+		if(kind == 7){
+			int n = bodySize(level, max - 2);
+			int m = 1 + rnd.nextInt(Math.min(max - 1 - n, 8));
+			indent(level).append("if ");
+			condition();
+			sb.append(" {\n");
+			body(level + 1, n);
+			indent(level).append("} else {\n");
+			body(level + 1, m);
+			indent(level).append("}\n");
+			return 1 + n + m;
+		}
+		int n = bodySize(level, max - 1);
+		if(kind == 8){
+			indent(level).append("{\n");
+			body(level + 1, n);
+			indent(level).append("}\n");
+			return 1 + n;
+		}
+		String w = "w" + level;
+		indent(level).append(w).append(" = 0;\n");
+		indent(level).append("while (").append(w).append(" < ").append(iterations).append(") {\n");
+		body(level + 1, n);
+		indent(level + 1).append(w).append(" = ").append(w).append(" + 1;\n");
+		indent(level).append("}\n");
+		return 1 + n;
+	}
+
+	/**
+	 * @param max the number of statements left for the body
+	 * @return a number of statements large enough to reach the depth
+	 */
+	private int bodySize(int level, int max) {
+		return Math.min(max, depth - level + 1 + rnd.nextInt(8));
+	}
+
+	/**
+	 * Statements of a compound statement, the first one nests further
+	 */
+	private void body(int level, int count) {
+		count -= statement(level, count, true);
+		statements(level, count);
+	}
+
+	private void condition() {
+		sb.append('(');
+		expression(1);
+		sb.append(' ').append(ROP[rnd.nextInt(ROP.length)]).append(' ');
+		expression(1);
+		sb.append(')');
+	}
+
+	/**
+	 * @param height the maximum height of the expression tree
+	 */
+	private void expression(int height) {
+		if(height == 0 || rnd.nextInt(10) < 3){
+			int r = rnd.nextInt(identifiers + 2);
+			if(r < identifiers)
+				sb.append('v').append(r);
+			else if(r == identifiers)
+				sb.append('n');
+			else
+				sb.append(rnd.nextInt(100));
+			return;
+		}
+		char op = OP[rnd.nextInt(OP.length)];
+		sb.append('(');
+		expression(height - 1);
+		sb.append(' ').append(op).append(' ');
+		if(op == '/')
+			sb.append(1 + rnd.nextInt(9));
+		else
+			expression(height - 1);
+		sb.append(')');
+	}
+
+	private StringBuilder indent(int level) {
+		for(int i = 0; i < level; i++)
+			sb.append('\t');
+		return sb;
+	}
+
+	/**
+	 * Lex, compile and run a program, keeping the best time of each phase
+	 */
+	static Result measure(String src) throws Error {
+		Result r = new Result();
+		int codeMax = 2 * src.length() + 16;
+		for(int rep = 0; rep < REPEAT; rep++){
+			long a0 = allocated(), t0 = System.nanoTime();
+			Lexer lex = new Lexer(new StringReader(src), new SymTab());
+			while (lex.scan() != Token.T_eof)
+				;
+			r.lex.add(System.nanoTime() - t0, allocated() - a0);
+			r.tokens = lex.getTokenCount();
+
+			a0 = allocated();
+			t0 = System.nanoTime();
+			SymTab symbols = new SymTab();
+			BinCode bin = new BinCode();
+			bin.init(codeMax);
+			try {
+				new Parser().program(new Lexer(new StringReader(src), symbols), bin);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new Error("program too large");
+			}
+			int code[] = new int[bin.getCurOffset()];
+			System.arraycopy(bin.getCode(), 0, code, 0, code.length);
+			r.compile.add(System.nanoTime() - t0, allocated() - a0);
+			r.code = code.length;
+
+			a0 = allocated();
+			t0 = System.nanoTime();
+			VM vm = new VM(code, symbols, MiniVM.stack_max);
+			vm.setOutput(NullSink.INSTANCE);
+			vm.start(1);
+			vm.run(RUN_BUDGET);
+			r.run.add(System.nanoTime() - t0, allocated() - a0);
+			r.executed = vm.getExecutedCount();
+		}
+		r.lex.units = r.tokens;
+		r.compile.units = r.tokens;
+		r.run.units = r.executed;
+		return r;
+	}
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * @return the bytes allocated by the current thread so far, 0 if the
+	 * JVM does not count them
+	 */
+	private static long allocated() {
+		if(threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+		return 0;
+	}
+
+	/**
+	 * Best time and allocation of a phase over the repetitions
+	 */
+	static class PhaseCost {
+		long nanos = Long.MAX_VALUE;
+		long bytes = Long.MAX_VALUE;
+		long units;		// tokens or executed instructions
+
+		void add(long nanos, long bytes) {
+			this.nanos = Math.min(this.nanos, nanos);
+			this.bytes = Math.min(this.bytes, bytes);
+		}
+
+		/**
+		 * @param scale the ratio of the swept parameter to the one of the previous run
+		 * @return the exponent k of (time per unit) ~ scale^k, about 0 when
+		 * the phase is linear in its units
+		 */
+		double growth(PhaseCost prev, double scale) {
+			if(units == 0 || prev.units == 0 || prev.nanos == 0)
+				return Double.NaN;
+			return Math.log(((double) nanos / units) / ((double) prev.nanos / prev.units)) / Math.log(scale);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%7.2f %6.1f %9d", nanos / 1e6, units == 0 ? 0.0 : (double) nanos / units, bytes / 1024);
+		}
+	}
+
+	/**
+	 * Measures of a generated program
+	 */
+	static class Result {
+		int tokens;
+		int code;
+		long executed;
+		final PhaseCost lex = new PhaseCost();
+		final PhaseCost compile = new PhaseCost();
+		final PhaseCost run = new PhaseCost();
+
+		String growth(Result prev, double scale) {
+			if(prev == null || Double.isInfinite(scale))
+				return "";
+			return String.format("%5.2f / %5.2f / %5.2f", lex.growth(prev.lex, scale),
+					compile.growth(prev.compile, scale), run.growth(prev.run, scale));
+		}
+	}
+}
@@ -0,0 +1,163 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load generator for {@link MiniServer}: measures throughput and latency.
+ * <p>
+ * Each connection has a sender thread that keeps up to "depth" requests
+ * in flight (pipelining) and a receiver thread that matches the responses
+ * and records their latency.
+ * <pre>
+ * MiniLoad [-p port | -u socket_path] [-c connections] [-d depth] [-n requests]
+ *          [-s script_name | -e source] [-a arg]
+ * </pre>
+ * Without -s or -e, the fac function is sent as source.
+ */
+public class MiniLoad {
+	static final String FAC = "fac(n) { if (n == 0) return 1; else return n * fac(n-1); }";
+
+	public static void main(String args[]) throws Exception {
+		int port = 7878, connections = 4, depth = 64, requests = 100000, arg = 8;
+		String unixPath = null, script = FAC;
+		byte kind = MiniServer.BY_SOURCE;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-p"))
+				port = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-u"))
+				unixPath = args[++i];
+			else if(args[i].equals("-c"))
+				connections = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-d"))
+				depth = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-n"))
+				requests = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-a"))
+				arg = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-s")){
+				kind = MiniServer.BY_NAME;
+				script = args[++i];
+			} else if(args[i].equals("-e"))
+				script = args[++i];
+		}
+		SocketAddress addr = unixPath != null ? UnixDomainSocketAddress.of(unixPath)
+				: new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+		int perConnection = requests / connections;
+		long latencies[][] = new long[connections][];
+		AtomicLong errors = new AtomicLong();
+		Thread threads[] = new Thread[connections];
+		long t0 = System.nanoTime();
+		for(int c = 0; c < connections; c++){
+			latencies[c] = new long[perConnection];
+			threads[c] = connection(addr, kind, script, arg, perConnection, depth, latencies[c], errors);
+		}
+		for(Thread t : threads)
+			t.join();
+		long elapsed = System.nanoTime() - t0;
+
+		long all[] = new long[perConnection * connections];
+		for(int c = 0; c < connections; c++)
+			System.arraycopy(latencies[c], 0, all, c * perConnection, perConnection);
+		Arrays.sort(all);
+		System.out.println(String.format("%d requests, %d connections, depth %d, %d errors",
+				all.length, connections, depth, errors.get()));
+		System.out.println(String.format("%.0f req/s, latency p50 %.1f us, p99 %.1f us, max %.1f us",
+				all.length / (elapsed / 1e9), percentile(all, 50) / 1e3, percentile(all, 99) / 1e3,
+				all.length == 0 ? 0.0 : all[all.length - 1] / 1e3));
+	}
+
+	static long percentile(long sorted[], int p) {
+		if(sorted.length == 0)
+			return 0;
+		return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+	}
+
+	/**
+	 * Start the sender and receiver of a connection
+	 * @return the receiver thread, which ends after the last response
+	 */
+	static Thread connection(SocketAddress addr, final byte kind, final String script, final int arg,
+			final int count, int depth, final long latencies[], final AtomicLong errors) throws IOException {
+		final SocketChannel ch = addr instanceof UnixDomainSocketAddress
+				? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+		ch.connect(addr);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(SocketStreams.out(ch), 65536));
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(SocketStreams.in(ch), 65536));
+		//written by the sender, read by the receiver
+		final AtomicLongArray sent = new AtomicLongArray(count);
+		final Semaphore window = new Semaphore(depth);
+
+		final Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for(int id = 0; id < count; id++){
+						if(!window.tryAcquire()){
+							//the window is full : push what we have, then wait
+							out.flush();
+							window.acquire();
+						}
+						sent.set(id, System.nanoTime());
+						out.writeInt(id);
+						out.writeByte(kind);
+						out.writeUTF(script);
+						out.writeInt(arg);
+					}
+					out.flush();
+				} catch (Exception e) {
+					errors.incrementAndGet();
+					//wake up the receiver, which waits for responses that will not come
+					close(ch);
+				}
+			}
+		});
+		Thread receiver = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for(int n = 0; n < count; n++){
+						int id = in.readInt();
+						if(id < 0 || id >= count)
+							throw new IOException("unknown request id " + id);
+						if(in.readByte() == MiniServer.OK)
+							in.readInt();
+						else {
+							in.readUTF();
+							errors.incrementAndGet();
+						}
+						latencies[n] = System.nanoTime() - sent.get(id);
+						window.release();
+					}
+				} catch (IOException e) {
+					errors.incrementAndGet();
+					//the sender may wait for the window
+					sender.interrupt();
+				} finally {
+					close(ch);
+				}
+			}
+		});
+		sender.start();
+		receiver.start();
+		return receiver;
+	}
+
+	private static void close(SocketChannel ch) {
+		try {
+			ch.close();
+		} catch (IOException e) {
+			//already closed
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process wide counters of the compiler and of the VM.
+ * <p>
+ * The Lexer, BinCode and VM count in plain fields while they work and
+ * publish their totals here once per compilation / run, so the cost in
+ * the hot loops is a local increment. The counters are LongAdders and
+ * can be read at any time with {@link #snapshot()} or through JMX once
+ * {@link #register()} was called.
+ * <p>
+ * The compiler is one pass: the lexing time is the time spent in
+ * Lexer.scan(), parsing and code emission are measured together. Timing
+ * each token costs two System.nanoTime() calls, so the metrics are off
+ * unless the JVM runs with -Dmini.metrics=true or they are enabled with
+ * {@link #setEnabled} (also through JMX).
+ */
+public class MiniMetrics implements MiniMetricsMBean {
+	static final String OBJECT_NAME = "MiniVM:type=Metrics";
+
+	private static final MiniMetrics instance = new MiniMetrics();
+	private static volatile boolean enabled = Boolean.getBoolean("mini.metrics");
+
+	private final LongAdder compiles = new LongAdder();
+	private final LongAdder compileErrors = new LongAdder();
+	private final LongAdder tokens = new LongAdder();
+	private final LongAdder symbols = new LongAdder();
+	private final LongAdder instructions = new LongAdder();
+	private final LongAdder codeWords = new LongAdder();
+	private final LongAdder lexNanos = new LongAdder();
+	private final LongAdder parseNanos = new LongAdder();
+	private final LongAdder runs = new LongAdder();
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder calls = new LongAdder();
+	private final LongAccumulator maxCallDepth = new LongAccumulator(Math::max, 0);
+	private final LongAccumulator maxStack = new LongAccumulator(Math::max, 0);
+	private final LongAdder runNanos = new LongAdder();
+
+	public static void main(String[] args) throws Error, InterruptedException {
+		register();
+		get().setEnabled(true);
+		MiniScript fac = MiniScript.compile("fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+		for(int i = 0; i < 100000; i++)
+			fac.eval(i % 12);
+		System.out.println(get().snapshot());
+		if(args.length > 0){
+			//keep the JVM alive to look at the MBean with jconsole
+			System.out.println("registered as " + OBJECT_NAME);
+			Thread.sleep(Long.parseLong(args[0]) * 1000);
+		}
+	}
+
+	private MiniMetrics() {
+	}
+
+	static MiniMetrics get() {
+		return instance;
+	}
+
+	static boolean isMetricsEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Register the MBean in the platform MBean server (once)
+	 */
+	static synchronized void register() {
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!mbs.isRegistered(name))
+				mbs.registerMBean(instance, name);
+		} catch (JMException e) {
+			throw new IllegalStateException("cannot register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * A compilation succeeded
+	 */
+	void compiled(int tokenCount, int symbolCount, int instrCount, int words, long lex, long parse) {
+		compiles.increment();
+		tokens.add(tokenCount);
+		symbols.add(symbolCount);
+		instructions.add(instrCount);
+		codeWords.add(words);
+		lexNanos.add(lex);
+		parseNanos.add(parse);
+	}
+
+	void compileFailed() {
+		compileErrors.increment();
+	}
+
+	/**
+	 * A VM run ended
+	 */
+	void ran(long instrCount, int callCount, int callDepth, int stackDepth, long nanos) {
+		runs.increment();
+		executed.add(instrCount);
+		calls.add(callCount);
+		maxCallDepth.accumulate(callDepth);
+		maxStack.accumulate(stackDepth);
+		runNanos.add(nanos);
+	}
+
+	/**
+	 * @return a consistent enough copy of all the counters
+	 */
+	MetricsSnapshot snapshot() {
+		return new MetricsSnapshot(getCompiles(), getCompileErrors(), getTokensScanned(),
+				getSymbolsEntered(), getInstructionsEmitted(), getCodeWords(),
+				getLexNanos(), getParseNanos(), getRuns(), getInstructionsExecuted(),
+				getCalls(), getMaxCallDepth(), getMaxStackDepth(), getRunNanos());
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public long getCompiles() {
+		return compiles.sum();
+	}
+
+	public long getCompileErrors() {
+		return compileErrors.sum();
+	}
+
+	public long getTokensScanned() {
+		return tokens.sum();
+	}
+
+	public long getSymbolsEntered() {
+		return symbols.sum();
+	}
+
+	public long getInstructionsEmitted() {
+		return instructions.sum();
+	}
+
+	public long getCodeWords() {
+		return codeWords.sum();
+	}
+
+	public long getLexNanos() {
+		return lexNanos.sum();
+	}
+
+	public long getParseNanos() {
+		return parseNanos.sum();
+	}
+
+	public long getRuns() {
+		return runs.sum();
+	}
+
+	public long getInstructionsExecuted() {
+		return executed.sum();
+	}
+
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	public long getMaxCallDepth() {
+		return maxCallDepth.get();
+	}
+
+	public long getMaxStackDepth() {
+		return maxStack.get();
+	}
+
+	public long getRunNanos() {
+		return runNanos.sum();
+	}
+
+	public void reset() {
+		compiles.reset();
+		compileErrors.reset();
+		tokens.reset();
+		symbols.reset();
+		instructions.reset();
+		codeWords.reset();
+		lexNanos.reset();
+		parseNanos.reset();
+		runs.reset();
+		executed.reset();
+		calls.reset();
+		maxCallDepth.reset();
+		maxStack.reset();
+		runNanos.reset();
+	}
+}
+
+/**
+ * Immutable copy of the {@link MiniMetrics} counters
+ */
+class MetricsSnapshot {
+	final long compiles, compileErrors;
+	final long tokens, symbols, instructions, codeWords;
+	final long lexNanos, parseNanos;
+	final long runs, executed, calls, maxCallDepth, maxStack, runNanos;
+
+	MetricsSnapshot(long compiles, long compileErrors, long tokens, long symbols,
+			long instructions, long codeWords, long lexNanos, long parseNanos,
+			long runs, long executed, long calls, long maxCallDepth, long maxStack, long runNanos) {
+		this.compiles = compiles;
+		this.compileErrors = compileErrors;
+		this.tokens = tokens;
+		this.symbols = symbols;
+		this.instructions = instructions;
+		this.codeWords = codeWords;
+		this.lexNanos = lexNanos;
+		this.parseNanos = parseNanos;
+		this.runs = runs;
+		this.executed = executed;
+		this.calls = calls;
+		this.maxCallDepth = maxCallDepth;
+		this.maxStack = maxStack;
+		this.runNanos = runNanos;
+	}
+
+	public String toString() {
+		return String.format("compile : %d ok, %d errors, %d tokens, %d symbols, %d instructions (%d words)%n"
+				+ "          lex %.3f ms, parse+emit %.3f ms%n"
+				+ "run     : %d runs, %d instructions, %d calls, max depth %d calls / %d stack, %.3f ms",
+				compiles, compileErrors, tokens, symbols, instructions, codeWords,
+				lexNanos / 1e6, parseNanos / 1e6,
+				runs, executed, calls, maxCallDepth, maxStack, runNanos / 1e6);
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * JMX view of {@link MiniMetrics}, registered as "MiniVM:type=Metrics"
+ */
+public interface MiniMetricsMBean {
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getCompiles();
+
+	long getCompileErrors();
+
+	long getTokensScanned();
+
+	long getSymbolsEntered();
+
+	long getInstructionsEmitted();
+
+	long getCodeWords();
+
+	long getLexNanos();
+
+	long getParseNanos();
+
+	long getRuns();
+
+	long getInstructionsExecuted();
+
+	long getCalls();
+
+	long getMaxCallDepth();
+
+	long getMaxStackDepth();
+
+	long getRunNanos();
+
+	void reset();
+}
@@ -0,0 +1,1055 @@
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimiser : control flow graph and SSA form of a compiled program.
+ * <p>
+ * The stack code is cut into basic blocks of statements with expression
+ * trees (see {@link Cfg}), the locals are renamed to SSA form, then the
+ * passes run on the graph before it is lowered back to VM code :
+ * <ul>
+ * <li>loop-invariant code motion : an expression of a loop whose
+ * variables are all defined outside the loop is computed once in the
+ * loop preheader into a new variable
+ * <li>strength reduction : in a loop where <code>i = i + c</code> is the
+ * only definition of i, the products <code>i * k</code> are replaced by
+ * a variable j initialised to i * k in the preheader and incremented by
+ * c * k after each increment of i
+ * <li>dead store elimination : the assignments whose value is never used
+ * (SSA liveness from the prints, returns and branches) are removed
+ * </ul>
+ * <pre>
+ * MiniOpt [&lt;script.mini&gt; arg]
+ * </pre>
+ * runs the passes one after the other and reports the number of executed
+ * VM instructions after each of them.
+ */
+public class MiniOpt {
+	static final String DEMO =
+			"demo(n) {\n" +
+			"  s = 0; i = 0;\n" +
+			"  while (i < n) {\n" +
+			"    a = n * 3 + 7;\n" +
+			"    s = s + i * 8 + a - (i * 8) / 2 + (i * 8) / 4;\n" +
+			"    t = s - 1;\n" +
+			"    i = i + 1;\n" +
+			"  }\n" +
+			"  return s;\n" +
+			"}\n";
+
+	private final Cfg cfg;
+
+	public static void main(String[] args) throws Error {
+		MiniScript ms;
+		int arg = 100;
+		if(args.length > 0){
+			try {
+				ms = MiniScript.compile(new FileReader(args[0]));
+			} catch (FileNotFoundException e) {
+				throw new Error("file not found " + args[0]);
+			}
+			if(args.length > 1)
+				arg = Integer.parseInt(args[1]);
+		} else {
+			System.out.print(DEMO);
+			ms = MiniScript.compile(DEMO);
+		}
+
+		VM vm = ms.newVM();
+		int expected = vm.exec(arg);
+		long base = vm.getExecutedCount();
+		System.out.println(String.format("%-24s %10d instructions, result %d", "original", base, expected));
+		MiniOpt opt = new MiniOpt(ms);
+		base = report("lowered without passes", opt.lower(), arg, expected, base);
+		System.out.println(String.format("%-24s (%d loops)", "preheaders", opt.cfg.insertPreheaders()));
+		int n = opt.cfg.licm();
+		base = report("loop invariant motion", opt.lower(), arg, expected, base, n, "expressions hoisted");
+		n = opt.cfg.strengthReduce();
+		base = report("strength reduction", opt.lower(), arg, expected, base, n, "products reduced");
+		n = opt.cfg.deadStores();
+		report("dead store elimination", opt.lower(), arg, expected, base, n, "stores removed");
+		opt.lowerCode().show();
+	}
+
+	private static long report(String pass, MiniScript ms, int arg, int expected, long before) throws Error {
+		return report(pass, ms, arg, expected, before, -1, null);
+	}
+
+	private static long report(String pass, MiniScript ms, int arg, int expected, long before,
+			int changes, String what) throws Error {
+		VM vm = ms.newVM();
+		int r = vm.exec(arg);
+		long count = vm.getExecutedCount();
+		System.out.println(String.format("%-24s %10d instructions (%+.1f%%)%s%s", pass, count,
+				before == 0 ? 0.0 : 100.0 * (count - before) / before,
+				what == null ? "" : ", " + changes + " " + what,
+				r == expected ? "" : ", WRONG RESULT " + r));
+		return count;
+	}
+
+	/**
+	 * Build the graph of a compiled program
+	 */
+	MiniOpt(MiniScript ms) throws Error {
+		cfg = Cfg.build(ms.getCode(), ms.getFrameSize());
+	}
+
+	/**
+	 * Run all the passes
+	 * @return the optimised program
+	 */
+	static MiniScript optimize(MiniScript ms) throws Error {
+		MiniOpt opt = new MiniOpt(ms);
+		opt.cfg.insertPreheaders();
+		opt.cfg.licm();
+		opt.cfg.strengthReduce();
+		opt.cfg.deadStores();
+		return opt.lower();
+	}
+
+	/**
+	 * @return the program in its current state
+	 */
+	MiniScript lower() {
+		BinCode bin = lowerCode();
+		int code[] = new int[bin.getCurOffset()];
+		System.arraycopy(bin.getCode(), 0, code, 0, code.length);
+		return new MiniScript(code, cfg.getVarCount(), MiniScript.DEFAULT_STACK);
+	}
+
+	BinCode lowerCode() {
+		return cfg.lower();
+	}
+
+	/**
+	 * Expression tree of the IR
+	 */
+	static class Expr {
+		static final int CONST = 0, VAR = 1, BIN = 2, CALL = 3;
+
+		final int kind;
+		final int value;	// constant or variable
+		final OpCode op;	// M_add .. M_div
+		int ver;			// SSA version of a variable
+		Expr a, b;
+
+		private Expr(int kind, int value, OpCode op, Expr a, Expr b) {
+			this.kind = kind;
+			this.value = value;
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+
+		static Expr constant(int c) {
+			return new Expr(CONST, c, null, null, null);
+		}
+
+		static Expr var(int v) {
+			return new Expr(VAR, v, null, null, null);
+		}
+
+		static Expr bin(OpCode op, Expr a, Expr b) {
+			return new Expr(BIN, 0, op, a, b);
+		}
+
+		static Expr call(Expr arg) {
+			return new Expr(CALL, 0, null, arg, null);
+		}
+
+		boolean hasCall() {
+			return kind == CALL || (a != null && a.hasCall()) || (b != null && b.hasCall());
+		}
+
+		/**
+		 * @return true if the expression is a product of variable v by a constant
+		 */
+		boolean isProduct(int v) {
+			return kind == BIN && op == OpCode.M_mul
+					&& ((a.kind == VAR && a.value == v && b.kind == CONST)
+							|| (b.kind == VAR && b.value == v && a.kind == CONST));
+		}
+
+		int factor() {
+			return a.kind == CONST ? a.value : b.value;
+		}
+
+		/**
+		 * Emit the stack code
+		 */
+		void gen(BinCode bin) {
+			switch (kind) {
+				case CONST:
+					bin.instr(OpCode.M_push, value);
+					break;
+				case VAR:
+					bin.instr(OpCode.M_load, value);
+					break;
+				case BIN:
+					a.gen(bin);
+					b.gen(bin);
+					bin.instr(op);
+					break;
+				default:
+					a.gen(bin);
+					bin.instr(OpCode.M_jsr, Cfg.START);
+			}
+		}
+
+		/**
+		 * @return the size of the stack code
+		 */
+		int size() {
+			switch (kind) {
+				case CONST:
+				case VAR:
+					return 2;
+				case BIN:
+					return a.size() + b.size() + 1;
+				default:
+					return a.size() + 2;
+			}
+		}
+
+		/**
+		 * @return the expression text, the same for equal expressions
+		 */
+		@Override
+		public String toString() {
+			switch (kind) {
+				case CONST:
+					return Integer.toString(value);
+				case VAR:
+					return "v" + value;
+				case BIN:
+					return "(" + a + "+-*/".charAt(op.getValue() - OpCode.M_add.getValue()) + b + ")";
+				default:
+					return "call(" + a + ")";
+			}
+		}
+	}
+
+	/**
+	 * Assignment or print statement
+	 */
+	static class Stmt {
+		final boolean print;
+		final int var;
+		int ver;		// SSA version defined by an assignment
+		Expr e;
+
+		Stmt(boolean print, int var, Expr e) {
+			this.print = print;
+			this.var = var;
+			this.e = e;
+		}
+	}
+
+	/**
+	 * SSA merge of the versions of a variable at a block entry
+	 */
+	static class Phi {
+		final int var;
+		int ver;
+		final int args[];	// version coming from each predecessor
+
+		Phi(int var, int preds) {
+			this.var = var;
+			this.args = new int[preds];
+		}
+	}
+
+	/**
+	 * Basic block : statements and the way it ends
+	 */
+	static class Block {
+		static final int FALL = 0, GOTO = 1, IF = 2, RET = 3;
+
+		final int addr;		// address in the original code, -1 for added blocks
+		final List<Stmt> stmts = new ArrayList<Stmt>();
+		int end = FALL;
+		OpCode cmp;			// IF : jump to taken if "a cmp b" holds
+		int branchAddr = -1;	// IF : address of the jump in the original code
+		boolean inverted;		// IF : condition and successors swapped since then
+		Expr a, b;			// IF operands, RET value
+		Block next, taken;
+
+		//analysis
+		final List<Block> preds = new ArrayList<Block>();
+		final List<Block> children = new ArrayList<Block>();
+		final Set<Block> frontier = new HashSet<Block>();
+		final List<Phi> phis = new ArrayList<Phi>();
+		Block idom;
+		int rpo;
+		int pc;				// address of the lowered code
+
+		Block(int addr) {
+			this.addr = addr;
+		}
+
+		List<Block> succs() {
+			List<Block> l = new ArrayList<Block>(2);
+			if(next != null)
+				l.add(next);
+			if(taken != null)
+				l.add(taken);
+			return l;
+		}
+
+		void replaceSucc(Block from, Block to) {
+			if(next == from)
+				next = to;
+			if(taken == from)
+				taken = to;
+		}
+	}
+
+	/**
+	 * Natural loop
+	 */
+	static class Loop {
+		final Block header;
+		final Set<Block> body = new HashSet<Block>();
+		Block preheader;
+
+		Loop(Block header) {
+			this.header = header;
+		}
+	}
+
+	/**
+	 * Control flow graph of the function, with its dominator tree, loops
+	 * and SSA form
+	 */
+	static class Cfg {
+		static final int START = 3;	// function address, after jsr 3; halt
+
+		private final List<Block> blocks = new ArrayList<Block>();
+		private final Block entry = new Block(-1);
+		private int vars;
+		private List<Loop> loops = new ArrayList<Loop>();
+
+		//SSA : definition of each version of each variable, null for the entry value
+		private List<List<Object>> defs;
+		private List<List<Block>> defBlocks;
+
+		int getVarCount() {
+			return vars;
+		}
+
+		private int newVar() {
+			return vars++;
+		}
+
+		/**
+		 * Cut the stack code into blocks, rebuilding the expressions with a
+		 * symbolic stack
+		 */
+		static Cfg build(int p[], int vars) throws Error {
+			Cfg g = new Cfg();
+			g.vars = vars;
+			boolean leader[] = new boolean[p.length + 1];
+			leader[START] = true;
+			leader[p.length] = true;
+			for(int i = START; i < p.length; i += OpCode.fromInt(p[i]).hasArg() ? 2 : 1){
+				OpCode op = OpCode.fromInt(p[i]);
+				if(op == null || (op.hasArg() && i + 1 >= p.length))
+					throw new Error("illegal vm code at " + i);
+				if(isBranch(op) || op == OpCode.M_goto){
+					leader[p[i + 1]] = true;
+					leader[i + 2] = true;
+				} else if(op == OpCode.M_ret)
+					leader[i + 1] = true;
+			}
+			Map<Integer, Block> at = new HashMap<Integer, Block>();
+			List<Block> all = new ArrayList<Block>();
+			for(int i = START; i <= p.length; i++)
+				if(leader[i]){
+					Block b = new Block(i);
+					at.put(i, b);
+					all.add(b);
+				}
+			g.entry.next = at.get(START);
+
+			Expr stack[] = new Expr[p.length];
+			for(Block b : all){
+				int sp = 0;
+				int i = b.addr;
+				boolean ended = false;
+				while(i < p.length && !ended){
+					OpCode op = OpCode.fromInt(p[i]);
+					int arg = op.hasArg() ? p[i + 1] : 0;
+					switch (op) {
+						case M_nop:
+							break;
+						case M_push:
+							stack[sp++] = Expr.constant(arg);
+							break;
+						case M_load:
+							stack[sp++] = Expr.var(arg);
+							break;
+						case M_pop:
+							b.stmts.add(new Stmt(false, arg, stack[--sp]));
+							break;
+						case M_pval:
+							b.stmts.add(new Stmt(true, -1, stack[--sp]));
+							break;
+						case M_add:
+						case M_sub:
+						case M_mul:
+						case M_div:
+							sp--;
+							stack[sp - 1] = Expr.bin(op, stack[sp - 1], stack[sp]);
+							break;
+						case M_jsr:
+							if(arg != START)
+								throw new Error("call to " + arg);
+							stack[sp - 1] = Expr.call(stack[sp - 1]);
+							break;
+						case M_if_cmpeq:
+						case M_if_cmpne:
+						case M_if_cmple:
+						case M_if_cmpge:
+						case M_if_cmplt:
+						case M_if_cmpgt:
+							b.end = Block.IF;
+							b.cmp = op;
+							b.branchAddr = i;
+							b.b = stack[--sp];
+							b.a = stack[--sp];
+							b.taken = at.get(arg);
+							ended = true;
+							break;
+						case M_goto:
+							b.end = Block.GOTO;
+							b.next = at.get(arg);
+							ended = true;
+							break;
+						case M_ret:
+							b.end = Block.RET;
+							b.a = stack[--sp];
+							ended = true;
+							break;
+						default:
+							throw new Error("unexpected vm code " + op + " at " + i);
+					}
+					i += op.hasArg() ? 2 : 1;
+					if(sp < 0)
+						throw new Error("stack underflow at " + i);
+					if(!ended && leader[i])
+						break;
+				}
+				if(sp != 0)
+					throw new Error("expression across blocks at " + i);
+				if(b.end == Block.FALL || b.end == Block.IF)
+					b.next = b.addr < p.length ? at.get(i) : null;
+			}
+
+			//keep the reachable blocks, in address order
+			Set<Block> seen = new HashSet<Block>();
+			List<Block> work = new ArrayList<Block>();
+			work.add(g.entry);
+			while(!work.isEmpty()){
+				Block b = work.remove(work.size() - 1);
+				if(seen.add(b))
+					work.addAll(b.succs());
+			}
+			g.blocks.add(g.entry);
+			for(Block b : all)
+				if(seen.contains(b))
+					g.blocks.add(b);
+			return g;
+		}
+
+		static boolean isBranch(OpCode op) {
+			return op == OpCode.M_if_cmpeq || op == OpCode.M_if_cmpne
+					|| op == OpCode.M_if_cmple || op == OpCode.M_if_cmpge
+					|| op == OpCode.M_if_cmplt || op == OpCode.M_if_cmpgt;
+		}
+
+		/**
+		 * @return the conditional jump taken when op is not
+		 */
+		static OpCode inverse(OpCode op) {
+			switch (op) {
+				case M_if_cmpeq:
+					return OpCode.M_if_cmpne;
+				case M_if_cmpne:
+					return OpCode.M_if_cmpeq;
+				case M_if_cmple:
+					return OpCode.M_if_cmpgt;
+				case M_if_cmpgt:
+					return OpCode.M_if_cmple;
+				case M_if_cmpge:
+					return OpCode.M_if_cmplt;
+				default:
+					return OpCode.M_if_cmpge;
+			}
+		}
+
+		/**
+		 * Predecessors, reverse post order, dominator tree and dominance
+		 * frontiers (Cooper, Harvey, Kennedy)
+		 */
+		private void analyze() {
+			for(Block b : blocks){
+				b.preds.clear();
+				b.children.clear();
+				b.frontier.clear();
+				b.idom = null;
+				b.rpo = -1;
+			}
+			for(Block b : blocks)
+				for(Block s : b.succs())
+					s.preds.add(b);
+
+			List<Block> order = new ArrayList<Block>();
+			postOrder(entry, new HashSet<Block>(), order);
+			int n = order.size();
+			Block rpo[] = new Block[n];
+			for(int i = 0; i < n; i++){
+				rpo[i] = order.get(n - 1 - i);
+				rpo[i].rpo = i;
+			}
+
+			entry.idom = entry;
+			boolean changed = true;
+			while(changed){
+				changed = false;
+				for(int i = 1; i < n; i++){
+					Block b = rpo[i];
+					Block idom = null;
+					for(Block p : b.preds)
+						if(p.idom != null)
+							idom = idom == null ? p : intersect(p, idom);
+					if(idom != b.idom){
+						b.idom = idom;
+						changed = true;
+					}
+				}
+			}
+			for(int i = 1; i < n; i++)
+				rpo[i].idom.children.add(rpo[i]);
+			for(Block b : blocks)
+				if(b.preds.size() >= 2)
+					for(Block p : b.preds)
+						for(Block r = p; r != b.idom; r = r.idom)
+							r.frontier.add(b);
+		}
+
+		private void postOrder(Block b, Set<Block> seen, List<Block> order) {
+			seen.add(b);
+			for(Block s : b.succs())
+				if(!seen.contains(s))
+					postOrder(s, seen, order);
+			order.add(b);
+		}
+
+		private static Block intersect(Block a, Block b) {
+			while(a != b){
+				while(a.rpo > b.rpo)
+					a = a.idom;
+				while(b.rpo > a.rpo)
+					b = b.idom;
+			}
+			return a;
+		}
+
+		private static boolean dominates(Block a, Block b) {
+			for(Block x = b; ; x = x.idom){
+				if(x == a)
+					return true;
+				if(x == x.idom)
+					return false;
+			}
+		}
+
+		/**
+		 * Find the natural loops and give each one a preheader : a new block
+		 * on the loop entry edges, laid out just before the header
+		 *
+		 * @return the number of loops
+		 */
+		int insertPreheaders() {
+			analyze();
+			Map<Block, Loop> byHeader = new HashMap<Block, Loop>();
+			for(Block t : blocks)
+				for(Block h : t.succs())
+					if(dominates(h, t)){
+						Loop l = byHeader.get(h);
+						if(l == null){
+							l = new Loop(h);
+							l.body.add(h);
+							byHeader.put(h, l);
+						}
+						List<Block> work = new ArrayList<Block>();
+						work.add(t);
+						while(!work.isEmpty()){
+							Block b = work.remove(work.size() - 1);
+							if(l.body.add(b))
+								work.addAll(b.preds);
+						}
+					}
+			loops = new ArrayList<Loop>(byHeader.values());
+			for(Loop l : loops){
+				Block pre = new Block(-1);
+				pre.next = l.header;
+				for(Block p : new ArrayList<Block>(l.header.preds))
+					if(!l.body.contains(p))
+						p.replaceSucc(l.header, pre);
+				blocks.add(blocks.indexOf(l.header), pre);
+				l.preheader = pre;
+			}
+			//inner loops first
+			Collections.sort(loops, new Comparator<Loop>() {
+				public int compare(Loop x, Loop y) {
+					return x.body.size() - y.body.size();
+				}
+			});
+			analyze();
+			return loops.size();
+		}
+
+		/**
+		 * Rename the variables to SSA form : minimal phi placement on the
+		 * iterated dominance frontiers, then renaming along the dominator tree
+		 */
+		private void buildSsa() {
+			analyze();
+			defs = new ArrayList<List<Object>>();
+			defBlocks = new ArrayList<List<Block>>();
+			for(int v = 0; v < vars; v++){
+				defs.add(new ArrayList<Object>(Arrays.asList((Object) null)));
+				defBlocks.add(new ArrayList<Block>(Arrays.asList((Block) null)));
+			}
+			for(Block b : blocks)
+				b.phis.clear();
+
+			for(int v = 0; v < vars; v++){
+				Set<Block> hasPhi = new HashSet<Block>();
+				List<Block> work = new ArrayList<Block>();
+				for(Block b : blocks)
+					for(Stmt s : b.stmts)
+						if(!s.print && s.var == v){
+							work.add(b);
+							break;
+						}
+				Set<Block> queued = new HashSet<Block>(work);
+				while(!work.isEmpty()){
+					Block b = work.remove(work.size() - 1);
+					for(Block d : b.frontier)
+						if(hasPhi.add(d)){
+							d.phis.add(new Phi(v, d.preds.size()));
+							if(queued.add(d))
+								work.add(d);
+						}
+				}
+			}
+
+			int stacks[][] = new int[vars][];
+			int top[] = new int[vars];
+			for(int v = 0; v < vars; v++)
+				stacks[v] = new int[8];	// version 0 at the bottom
+			rename(entry, stacks, top);
+		}
+
+		private int define(int v, Object site, Block b, int stacks[][], int top[]) {
+			int ver = defs.get(v).size();
+			defs.get(v).add(site);
+			defBlocks.get(v).add(b);
+			if(++top[v] == stacks[v].length)
+				stacks[v] = Arrays.copyOf(stacks[v], top[v] * 2);
+			stacks[v][top[v]] = ver;
+			return ver;
+		}
+
+		private void rename(Block b, int stacks[][], int top[]) {
+			int saved[] = top.clone();
+			for(Phi phi : b.phis)
+				phi.ver = define(phi.var, phi, b, stacks, top);
+			for(Stmt s : b.stmts){
+				renameUses(s.e, stacks, top);
+				if(!s.print)
+					s.ver = define(s.var, s, b, stacks, top);
+			}
+			if(b.a != null)
+				renameUses(b.a, stacks, top);
+			if(b.b != null)
+				renameUses(b.b, stacks, top);
+			for(Block s : b.succs())
+				for(int j = 0; j < s.preds.size(); j++)
+					if(s.preds.get(j) == b)
+						for(Phi phi : s.phis)
+							phi.args[j] = stacks[phi.var][top[phi.var]];
+			for(Block c : b.children)
+				rename(c, stacks, top);
+			System.arraycopy(saved, 0, top, 0, top.length);
+		}
+
+		private void renameUses(Expr e, int stacks[][], int top[]) {
+			if(e == null)
+				return;
+			if(e.kind == Expr.VAR)
+				e.ver = stacks[e.value][top[e.value]];
+			renameUses(e.a, stacks, top);
+			renameUses(e.b, stacks, top);
+		}
+
+		/**
+		 * Loop-invariant code motion
+		 *
+		 * @return the number of expressions moved to a preheader
+		 */
+		int licm() {
+			int moved = 0;
+			for(Loop l : loops){
+				buildSsa();
+				Map<String, Integer> temps = new HashMap<String, Integer>();
+				int before = vars;
+				for(Block b : l.body){
+					for(Stmt s : b.stmts)
+						s.e = hoist(s.e, l, temps);
+					if(b.a != null)
+						b.a = hoist(b.a, l, temps);
+					if(b.b != null)
+						b.b = hoist(b.b, l, temps);
+				}
+				moved += vars - before;
+			}
+			return moved;
+		}
+
+		private Expr hoist(Expr e, Loop l, Map<String, Integer> temps) {
+			if(e.kind == Expr.BIN && invariant(e, l) && safe(e)){
+				String key = e.toString();
+				Integer t = temps.get(key);
+				if(t == null){
+					t = newVar();
+					temps.put(key, t);
+					l.preheader.stmts.add(new Stmt(false, t, e));
+				}
+				return Expr.var(t);
+			}
+			if(e.a != null)
+				e.a = hoist(e.a, l, temps);
+			if(e.b != null)
+				e.b = hoist(e.b, l, temps);
+			return e;
+		}
+
+		private boolean invariant(Expr e, Loop l) {
+			switch (e.kind) {
+				case Expr.CONST:
+					return true;
+				case Expr.VAR:
+					Block d = defBlocks.get(e.value).get(e.ver);
+					return d == null || !l.body.contains(d);
+				case Expr.BIN:
+					return invariant(e.a, l) && invariant(e.b, l);
+				default:
+					return false;	// a call may print
+			}
+		}
+
+		/**
+		 * @return true if the expression cannot fail, so that it can be
+		 * computed even when the loop body is never executed
+		 */
+		private static boolean safe(Expr e) {
+			if(e.kind != Expr.BIN)
+				return e.kind != Expr.CALL;
+			if(e.op == OpCode.M_div && (e.b.kind != Expr.CONST || e.b.value == 0))
+				return false;
+			return safe(e.a) && safe(e.b);
+		}
+
+		/**
+		 * Induction variable strength reduction
+		 *
+		 * @return the number of products replaced by an induction variable
+		 */
+		int strengthReduce() {
+			int reduced = 0;
+			for(Loop l : loops){
+				//the single definition of each variable in the loop
+				Map<Integer, Stmt> single = new HashMap<Integer, Stmt>();
+				Set<Integer> multiple = new HashSet<Integer>();
+				Map<Stmt, Block> where = new HashMap<Stmt, Block>();
+				for(Block b : l.body)
+					for(Stmt s : b.stmts)
+						if(!s.print && single.put(s.var, s) != null)
+							multiple.add(s.var);
+						else
+							where.put(s, b);
+				for(Map.Entry<Integer, Stmt> d : single.entrySet()){
+					int v = d.getKey();
+					Stmt inc = d.getValue();
+					Expr e = inc.e;
+					if(multiple.contains(v) || e.kind != Expr.BIN)
+						continue;
+					int step;
+					if(e.op == OpCode.M_add && e.a.kind == Expr.VAR && e.a.value == v && e.b.kind == Expr.CONST)
+						step = e.b.value;
+					else if(e.op == OpCode.M_add && e.b.kind == Expr.VAR && e.b.value == v && e.a.kind == Expr.CONST)
+						step = e.a.value;
+					else if(e.op == OpCode.M_sub && e.a.kind == Expr.VAR && e.a.value == v && e.b.kind == Expr.CONST)
+						step = -e.b.value;
+					else
+						continue;
+
+					Map<Integer, Integer> uses = new HashMap<Integer, Integer>();
+					for(Block b : l.body){
+						for(Stmt s : b.stmts)
+							countProducts(s.e, v, uses);
+						countProducts(b.a, v, uses);
+						countProducts(b.b, v, uses);
+					}
+					for(Map.Entry<Integer, Integer> u : uses.entrySet()){
+						//a use saves 2 instructions (load j instead of load, push, mul),
+						//the increment of j costs 4
+						if(u.getValue() * 2 <= 4)
+							continue;
+						int k = u.getKey();
+						int j = newVar();
+						l.preheader.stmts.add(new Stmt(false, j, Expr.bin(OpCode.M_mul, Expr.var(v), Expr.constant(k))));
+						for(Block b : l.body){
+							for(Stmt s : b.stmts)
+								s.e = replaceProducts(s.e, v, k, j);
+							if(b.a != null)
+								b.a = replaceProducts(b.a, v, k, j);
+							if(b.b != null)
+								b.b = replaceProducts(b.b, v, k, j);
+						}
+						List<Stmt> body = where.get(inc).stmts;
+						body.add(body.indexOf(inc) + 1,
+								new Stmt(false, j, Expr.bin(OpCode.M_add, Expr.var(j), Expr.constant(step * k))));
+						reduced += u.getValue();
+					}
+				}
+			}
+			return reduced;
+		}
+
+		private static void countProducts(Expr e, int v, Map<Integer, Integer> uses) {
+			if(e == null)
+				return;
+			if(e.isProduct(v)){
+				Integer n = uses.get(e.factor());
+				uses.put(e.factor(), n == null ? 1 : n + 1);
+				return;
+			}
+			countProducts(e.a, v, uses);
+			countProducts(e.b, v, uses);
+		}
+
+		private static Expr replaceProducts(Expr e, int v, int k, int j) {
+			if(e.isProduct(v) && e.factor() == k)
+				return Expr.var(j);
+			if(e.a != null)
+				e.a = replaceProducts(e.a, v, k, j);
+			if(e.b != null)
+				e.b = replaceProducts(e.b, v, k, j);
+			return e;
+		}
+
+		/**
+		 * Dead store elimination : mark the live SSA versions from the
+		 * prints, returns, branches, calls and divisions that may trap, then
+		 * remove the assignments of the other versions
+		 *
+		 * @return the number of removed assignments
+		 */
+		int deadStores() {
+			buildSsa();
+			List<Set<Integer>> live = new ArrayList<Set<Integer>>();
+			for(int v = 0; v < vars; v++)
+				live.add(new HashSet<Integer>());
+			List<int[]> work = new ArrayList<int[]>();
+			for(Block b : blocks){
+				for(Stmt s : b.stmts)
+					if(s.print || !safe(s.e))
+						markUses(s.e, live, work);
+				markUses(b.a, live, work);
+				markUses(b.b, live, work);
+			}
+			while(!work.isEmpty()){
+				int vv[] = work.remove(work.size() - 1);
+				Object site = defs.get(vv[0]).get(vv[1]);
+				if(site instanceof Stmt)
+					markUses(((Stmt) site).e, live, work);
+				else if(site instanceof Phi)
+					for(int ver : ((Phi) site).args)
+						if(live.get(vv[0]).add(ver))
+							work.add(new int[] { vv[0], ver });
+			}
+			int removed = 0;
+			for(Block b : blocks)
+				for(int i = b.stmts.size() - 1; i >= 0; i--){
+					Stmt s = b.stmts.get(i);
+					//a call or a division that may trap is kept even if its result is not used
+					if(!s.print && safe(s.e) && !live.get(s.var).contains(s.ver)){
+						b.stmts.remove(i);
+						removed++;
+					}
+				}
+			return removed;
+		}
+
+		private static void markUses(Expr e, List<Set<Integer>> live, List<int[]> work) {
+			if(e == null)
+				return;
+			if(e.kind == Expr.VAR && live.get(e.value).add(e.ver))
+				work.add(new int[] { e.value, e.ver });
+			markUses(e.a, live, work);
+			markUses(e.b, live, work);
+		}
+
+		/**
+		 * Profile guided block order : chains of blocks are built along the
+		 * hottest edges first (Pettis and Hansen), back edges first among equal
+		 * weights so that loops are rotated, then the chain of the entry comes
+		 * first and the other ones in address order. The hot successor of a
+		 * block follows it, the lowering inverts the branches whose taken
+		 * successor follows.
+		 *
+		 * @param profile the branch counts of runs of the original code
+		 * @return the number of blocks that changed position
+		 */
+		int layout(BranchProfile profile) {
+			analyze();
+			final Map<Block, Long> freq = new HashMap<Block, Long>();
+			List<Block> order = new ArrayList<Block>(blocks);
+			Collections.sort(order, new Comparator<Block>() {
+				public int compare(Block x, Block y) {
+					return x.rpo - y.rpo;
+				}
+			});
+			for(Block b : order){
+				long f = 0;
+				if(b == entry)
+					f = Math.max(1, profile.calls);
+				else if(b.branchAddr >= 0)
+					f = profile.taken[b.branchAddr] + profile.fallen[b.branchAddr];
+				else
+					for(Block p : b.preds)
+						if(freq.containsKey(p))
+							f += weight(p, b, freq, profile);
+				freq.put(b, f);
+			}
+
+			final List<long[]> edges = new ArrayList<long[]>();	// {weight, back edge, from, to}
+			for(int i = 0; i < blocks.size(); i++)
+				for(Block s : new HashSet<Block>(blocks.get(i).succs()))
+					edges.add(new long[] { weight(blocks.get(i), s, freq, profile),
+							dominates(s, blocks.get(i)) ? 1 : 0, i, blocks.indexOf(s) });
+			Collections.sort(edges, new Comparator<long[]>() {
+				public int compare(long x[], long y[]) {
+					if(x[0] != y[0])
+						return x[0] > y[0] ? -1 : 1;
+					if(x[1] != y[1])
+						return (int) (y[1] - x[1]);
+					return (int) (x[2] != y[2] ? x[2] - y[2] : x[3] - y[3]);
+				}
+			});
+
+			Map<Block, List<Block>> chain = new HashMap<Block, List<Block>>();
+			for(Block b : blocks)
+				chain.put(b, new ArrayList<Block>(Arrays.asList(b)));
+			for(long e[] : edges){
+				Block u = blocks.get((int) e[2]), v = blocks.get((int) e[3]);
+				List<Block> cu = chain.get(u), cv = chain.get(v);
+				if(cu != cv && cu.get(cu.size() - 1) == u && cv.get(0) == v && v != entry){
+					cu.addAll(cv);
+					for(Block x : cv)
+						chain.put(x, cu);
+				}
+			}
+
+			List<Block> laid = new ArrayList<Block>(chain.get(entry));
+			for(Block b : blocks)
+				if(chain.get(b).get(0) == b && b != entry)
+					laid.addAll(chain.get(b));
+			int moved = 0;
+			for(int i = 0; i < laid.size(); i++)
+				if(laid.get(i) != blocks.get(i))
+					moved++;
+			blocks.clear();
+			blocks.addAll(laid);
+			return moved;
+		}
+
+		private static long weight(Block from, Block to, Map<Block, Long> freq, BranchProfile profile) {
+			if(from.end != Block.IF || from.branchAddr < 0)
+				return freq.containsKey(from) ? freq.get(from) : 0;
+			long taken = profile.taken[from.branchAddr], fallen = profile.fallen[from.branchAddr];
+			return (from.taken == to ? (from.inverted ? fallen : taken) : 0)
+					+ (from.next == to ? (from.inverted ? taken : fallen) : 0);
+		}
+
+		/**
+		 * Generate the stack code, blocks in list order : a goto is only
+		 * needed when the next block is not the following one
+		 */
+		BinCode lower() {
+			int size = 8;
+			for(Block b : blocks){
+				size += 4 + (b.a != null ? b.a.size() : 0) + (b.b != null ? b.b.size() : 0);
+				for(Stmt s : b.stmts)
+					size += s.e.size() + 2;
+			}
+			BinCode bin = new BinCode();
+			bin.init(size);
+			bin.start();
+			List<int[]> fixups = new ArrayList<int[]>();	// {operand address, block index}
+			for(int i = 0; i < blocks.size(); i++){
+				Block b = blocks.get(i);
+				Block following = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+				b.pc = bin.getCurOffset();
+				for(Stmt s : b.stmts){
+					s.e.gen(bin);
+					if(s.print)
+						bin.instr(OpCode.M_pval);
+					else
+						bin.instr(OpCode.M_pop, s.var);
+				}
+				switch (b.end) {
+					case Block.RET:
+						b.a.gen(bin);
+						bin.instr(OpCode.M_ret);
+						continue;
+					case Block.IF:
+						if(b.taken == following && b.next != following){
+							//fall through to the taken successor
+							b.cmp = inverse(b.cmp);
+							b.taken = b.next;
+							b.next = following;
+							b.inverted = !b.inverted;
+						}
+						b.a.gen(bin);
+						b.b.gen(bin);
+						bin.instr(b.cmp, 0);
+						fixups.add(new int[] { bin.getCurOffset() - 1, blocks.indexOf(b.taken) });
+						break;
+				}
+				if(b.next != following){
+					//a block without successor runs off the end of the code, as before
+					bin.instr(OpCode.M_goto, 0);
+					fixups.add(new int[] { bin.getCurOffset() - 1, b.next == null ? -1 : blocks.indexOf(b.next) });
+				}
+			}
+			int code[] = bin.getCode();
+			for(int f[] : fixups)
+				code[f[0]] = f[1] < 0 ? bin.getCurOffset() : blocks.get(f[1]).pc;
+			return bin;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Embedding API : a Mini program compiled once and evaluated many times.
+ * <p>
+ * Unlike {@link MiniVM#main}, nothing is printed : no listing, no trace,
+ * and the output of the print statement is discarded unless a writer is
+ * given to {@link #setOutput}. A MiniScript can be shared between threads,
+ * each thread gets its own VM (and stack) on first use.
+ * <pre>
+ * MiniScript fac = MiniScript.compile("fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+ * int r = fac.eval(8);
+ * </pre>
+ */
+public class MiniScript {
+	static final int MAGIC = 0x4D564331; // "MVC1", compiled code file
+	//bumped when a source may compile to different code : 2 is left associative * and /
+	static final int COMPILER_VERSION = 2;
+	static final int DEFAULT_STACK = MiniVM.stack_max;
+
+	private final int code[];
+	private final int frameSize;
+	private final int stackSize;
+	private volatile PrintWriter output;
+	private final ThreadLocal<VM> vms = new ThreadLocal<VM>() {
+		@Override
+		protected VM initialValue() {
+			return newVM();
+		}
+	};
+
+	public static void main(String[] args) throws Error {
+		MiniScript fac = compile("fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+		int sum = 0;
+		long t0 = System.nanoTime();
+		for(int i = 0; i < 1000000; i++)
+			sum += fac.eval(i & 7);
+		long t1 = System.nanoTime();
+		System.out.println("fac(8) = " + fac.eval(8));
+		System.out.println(String.format("1000000 evals in %d ms (checksum %d)", (t1 - t0) / 1000000, sum));
+	}
+
+	/**
+	 * Wrap already compiled code (e.g. loaded from a {@link CompileCache})
+	 * @param code the VM code
+	 * @param frameSize the number of local variables of the function
+	 * @param stackSize the size of the VM stack
+	 */
+	MiniScript(int code[], int frameSize, int stackSize) {
+		this.code = code;
+		this.frameSize = frameSize;
+		this.stackSize = stackSize;
+	}
+
+	/**
+	 * Compile a program from its text
+	 * @param source the Mini source code
+	 * @return the compiled program
+	 * @throws Error on syntax errors
+	 */
+	public static MiniScript compile(String source) throws Error {
+		return compile(new StringReader(source));
+	}
+
+	/**
+	 * Compile a program from a reader, the reader is not closed
+	 */
+	public static MiniScript compile(Reader source) throws Error {
+		return compile(source, MiniVM.code_max, DEFAULT_STACK);
+	}
+
+	/**
+	 * @param codeMax the size of the code buffer
+	 * @param stackSize the size of the VM stack used for each evaluation
+	 * @throws Error on syntax errors, or if the program is too large or too
+	 * deeply nested for the compiler
+	 */
+	public static MiniScript compile(Reader source, int codeMax, int stackSize) throws Error {
+		SymTab symbols = new SymTab();
+		Lexer lex = new Lexer(source, symbols);
+		BinCode cg = new BinCode();
+		cg.init(codeMax);
+		Parser parser = new Parser();
+		try {
+			parser.program(lex, cg);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new Error("program too large");
+		} catch (StackOverflowError e) {
+			//the statements nested in if, while and { } still recurse
+			throw new Error("too deeply nested");
+		}
+		int code[] = new int[cg.getCurOffset()];
+		System.arraycopy(cg.getCode(), 0, code, 0, code.length);
+		return new MiniScript(code, symbols.getCount(), stackSize);
+	}
+
+	/**
+	 * Run the function with an argument
+	 * @param arg the value of the function parameter
+	 * @return the returned value
+	 * @throws Error on VM errors
+	 */
+	public int eval(int arg) throws Error {
+		return eval(arg, output);
+	}
+
+	/**
+	 * Run the function with an argument, printing to a given writer
+	 * @param arg the value of the function parameter
+	 * @param out the destination of the print statement, null to discard
+	 * @return the returned value
+	 * @throws Error on VM errors
+	 */
+	public int eval(int arg, PrintWriter out) throws Error {
+		return eval(arg, out == null ? NullSink.INSTANCE : new WriterSink(out));
+	}
+
+	/**
+	 * Run the function with an argument, printing to a given sink
+	 * @param arg the value of the function parameter
+	 * @param out the destination of the print statement, flushed by the caller
+	 * @return the returned value
+	 * @throws Error on VM errors : stack overflow, division by zero, or a
+	 * function that ends without return
+	 */
+	public int eval(int arg, OutputSink out) throws Error {
+		return eval(arg, out, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Run the function with an argument and an instruction budget
+	 * @param arg the value of the function parameter
+	 * @param out the destination of the print statement, flushed by the caller
+	 * @param fuel the number of instructions the run may execute, see {@link VM#run(long)}
+	 * @return the returned value
+	 * @throws Error on VM errors, or if the run did not end within the budget
+	 */
+	public int eval(int arg, OutputSink out, long fuel) throws Error {
+		VM vm = vms.get();
+		vm.setOutput(out);
+		try {
+			vm.start(arg);
+			if(!vm.run(fuel))
+				throw new Error("out of fuel after " + vm.getExecutedCount() + " instructions");
+			return vm.getResult();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			vms.remove();
+			if(vm.isPastEnd())
+				throw new Error("end of the function reached without return");
+			//the VM stack is too small for the recursion depth
+			throw new Error("stack overflow");
+		} catch (ArithmeticException e) {
+			throw new Error("division by zero");
+		}
+	}
+
+	/**
+	 * Set where the print statement writes
+	 * @param out the writer, null (the default) to discard
+	 */
+	public void setOutput(PrintWriter out) {
+		this.output = out;
+	}
+
+	/**
+	 * @return a copy of the compiled code
+	 */
+	public int[] getCode() {
+		return code.clone();
+	}
+
+	/**
+	 * @return the number of local variables of the function
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * Write the compiled code : magic, frame size, code length, code
+	 */
+	void save(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(frameSize);
+		out.writeInt(code.length);
+		for(int c : code)
+			out.writeInt(c);
+	}
+
+	/**
+	 * Read back a program written by {@link #save}
+	 * @param stackSize the VM stack size to use
+	 * @throws IOException if the data is not a valid program
+	 */
+	static MiniScript load(DataInputStream in, int stackSize) throws IOException {
+		if(in.readInt() != MAGIC)
+			throw new IOException("not a compiled Mini program");
+		int frameSize = in.readInt();
+		int length = in.readInt();
+		if(frameSize < 0 || length < 0)
+			throw new IOException("corrupt compiled Mini program");
+		int code[] = new int[length];
+		for(int i = 0; i < code.length; i++)
+			code[i] = in.readInt();
+		return new MiniScript(code, frameSize, stackSize);
+	}
+
+	/**
+	 * Create a new VM for the program, for callers that want to
+	 * drive it directly
+	 */
+	VM newVM() {
+		VM vm = new VM(code, frameSize, stackSize);
+		vm.setOutput(NullSink.INSTANCE);
+		return vm;
+	}
+}
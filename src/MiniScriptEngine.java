@@ -0,0 +1,129 @@
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * JSR-223 (javax.script) engine for Mini, built on {@link MiniScript}.
+ * <p>
+ * The function argument is read from the "arg" attribute of the script
+ * context (0 if missing) and the returned value is an Integer. The print
+ * statement writes to the context writer.
+ * <pre>
+ * ScriptEngine engine = new ScriptEngineManager().getEngineByName("mini");
+ * CompiledScript fac = ((Compilable) engine).compile(source);
+ * engine.put("arg", 8);
+ * Object r = fac.eval();
+ * </pre>
+ */
+public class MiniScriptEngine extends AbstractScriptEngine implements Compilable {
+	static final String ARG = "arg";
+
+	private final ScriptEngineFactory factory;
+
+	public static void main(String[] args) throws ScriptException {
+		ScriptEngine engine = new ScriptEngineManager().getEngineByName("mini");
+		if(engine == null)
+			engine = new MiniScriptEngineFactory().getScriptEngine();
+		CompiledScript fac = ((Compilable) engine).compile(
+				"fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+		for(int i = 0; i <= 8; i++){
+			engine.put(ARG, i);
+			System.out.println("fac(" + i + ") = " + fac.eval());
+		}
+	}
+
+	MiniScriptEngine(ScriptEngineFactory factory) {
+		this.factory = factory;
+	}
+
+	public ScriptEngineFactory getFactory() {
+		return factory;
+	}
+
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		return eval(new StringReader(script), context);
+	}
+
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		return compile(reader).eval(context);
+	}
+
+	public CompiledScript compile(String script) throws ScriptException {
+		return compile(new StringReader(script));
+	}
+
+	public CompiledScript compile(Reader script) throws ScriptException {
+		try {
+			return new MiniCompiledScript(this, MiniScript.compile(script));
+		} catch (Error e) {
+			throw new ScriptException("error " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the function argument from the context
+	 */
+	static int argument(ScriptContext context) throws ScriptException {
+		Object arg = context.getAttribute(ARG);
+		if(arg == null)
+			return 0;
+		if(arg instanceof Number)
+			return ((Number) arg).intValue();
+		try {
+			return Integer.parseInt(arg.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new ScriptException("bad argument " + arg);
+		}
+	}
+}
+
+/**
+ * A Mini program compiled by {@link MiniScriptEngine}
+ */
+class MiniCompiledScript extends CompiledScript {
+	private final MiniScriptEngine engine;
+	private final MiniScript script;
+
+	MiniCompiledScript(MiniScriptEngine engine, MiniScript script) {
+		this.engine = engine;
+		this.script = script;
+	}
+
+	public ScriptEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @return the compiled program, to call {@link MiniScript#eval(int)} directly
+	 */
+	MiniScript getScript() {
+		return script;
+	}
+
+	public Object eval(ScriptContext context) throws ScriptException {
+		int arg = MiniScriptEngine.argument(context);
+		PrintWriter out = new PrintWriter(context.getWriter(), true);
+		try {
+			return script.eval(arg, out);
+		} catch (Error e) {
+			throw new ScriptException("error " + e.getMessage());
+		} finally {
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * Factory registered in META-INF/services for the javax.script discovery
+ */
+public class MiniScriptEngineFactory implements ScriptEngineFactory {
+
+	public String getEngineName() {
+		return "MiniVM";
+	}
+
+	public String getEngineVersion() {
+		return "1.0";
+	}
+
+	public List<String> getExtensions() {
+		return Collections.singletonList("mini");
+	}
+
+	public List<String> getMimeTypes() {
+		return Collections.singletonList("text/x-mini");
+	}
+
+	public List<String> getNames() {
+		return Arrays.asList("mini", "Mini", "MiniVM");
+	}
+
+	public String getLanguageName() {
+		return "Mini";
+	}
+
+	public String getLanguageVersion() {
+		return "1";
+	}
+
+	public Object getParameter(String key) {
+		if(ScriptEngine.ENGINE.equals(key))
+			return getEngineName();
+		if(ScriptEngine.ENGINE_VERSION.equals(key))
+			return getEngineVersion();
+		if(ScriptEngine.NAME.equals(key))
+			return getNames().get(0);
+		if(ScriptEngine.LANGUAGE.equals(key))
+			return getLanguageName();
+		if(ScriptEngine.LANGUAGE_VERSION.equals(key))
+			return getLanguageVersion();
+		//a VM is not shared between threads, compiled scripts are
+		if("THREADING".equals(key))
+			return "MULTITHREADED";
+		return null;
+	}
+
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		return m + "(" + (args.length > 0 ? args[0] : "") + ")";
+	}
+
+	public String getOutputStatement(String toDisplay) {
+		return "print " + toDisplay + ";";
+	}
+
+	public String getProgram(String... statements) {
+		StringBuilder sb = new StringBuilder("main(arg) {\n");
+		for(String st : statements)
+			sb.append('\t').append(st).append('\n');
+		//a function must not run off its end
+		return sb.append("\treturn 0;\n}\n").toString();
+	}
+
+	public ScriptEngine getScriptEngine() {
+		return new MiniScriptEngine(this);
+	}
+}
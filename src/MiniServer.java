@@ -0,0 +1,261 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local execution server : runs Mini scripts for other processes.
+ * <p>
+ * The server listens on a TCP port of the loopback interface or on a
+ * Unix domain socket. Each connection is served by its own (virtual if
+ * the JVM has them) thread. The protocol is binary and pipelined: a
+ * client can send many requests without waiting, the responses come back
+ * in the same order and are flushed only when no more request is waiting
+ * in the input buffer, so a burst of requests gets a batch of responses.
+ * <pre>
+ * request  : int id, byte kind, UTF script, int arg
+ *            kind 0 : script is the name of a file of the script directory
+ *            kind 1 : script is the source code
+ * response : int id, byte status, then int result (status 0) or UTF message (status 1)
+ * </pre>
+ * Scripts are compiled once through a {@link CompileCache}. With -w, the
+ * scripts of the directory are recompiled when their file changes. Each
+ * request may execute at most -f instructions, a script that runs longer
+ * gets a failure instead of blocking its connection.
+ * <p>
+ * Unix domain sockets need Java 16 or later.
+ */
+public class MiniServer {
+	static final byte BY_NAME = 0;
+	static final byte BY_SOURCE = 1;
+	static final byte OK = 0;
+	static final byte FAILED = 1;
+	static final long DEFAULT_FUEL = 100000000;
+
+	private final CompileCache cache;
+	private final File scriptDir;
+	private final ExecutorService executor;
+	private final long fuel;
+	private final Map<String, MiniScript> byName = new ConcurrentHashMap<String, MiniScript>();
+
+	public static void main(String args[]) throws IOException {
+		int port = 7878;
+		String unixPath = null;
+		File dir = new File(".");
+		boolean watch = false;
+		long fuel = DEFAULT_FUEL;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-p"))
+				port = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-u"))
+				unixPath = args[++i];
+			else if(args[i].equals("-d"))
+				dir = new File(args[++i]);
+			else if(args[i].equals("-w"))
+				watch = true;
+			else if(args[i].equals("-f"))
+				fuel = Long.parseLong(args[++i]);
+			else {
+				System.out.println("Usage : MiniServer [-p port | -u socket_path] [-d script_dir] [-w] [-f fuel]");
+				System.exit(1);
+			}
+		}
+		MiniServer server = new MiniServer(dir, 1000, fuel);
+		if(watch)
+			server.watch();
+		SocketAddress addr = unixPath != null ? unixAddress(unixPath)
+				: new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		System.out.println("MiniServer listening on " + addr);
+		server.serve(addr);
+	}
+
+	/**
+	 * @param scriptDir where the scripts requested by name are
+	 * @param cacheSize the number of compiled scripts kept in memory
+	 * @param fuel the number of instructions a request may execute
+	 */
+	MiniServer(File scriptDir, int cacheSize, long fuel) {
+		this.scriptDir = scriptDir;
+		this.fuel = fuel;
+		this.cache = new CompileCache(cacheSize, null);
+		this.executor = newConnectionExecutor();
+	}
+
+	/**
+	 * Keep the scripts requested by name up to date with their files,
+	 * see {@link MiniWatch}
+	 */
+	void watch() throws IOException {
+		new MiniWatch(scriptDir.toPath(), byName).start();
+	}
+
+	/**
+	 * A virtual thread per connection when the JVM supports it (Java 21+),
+	 * else a cached pool of platform threads
+	 */
+	static ExecutorService newConnectionExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	static SocketAddress unixAddress(String path) throws IOException {
+		Files.deleteIfExists(new File(path).toPath());
+		return UnixDomainSocketAddress.of(path);
+	}
+
+	/**
+	 * Accept connections until the channel is closed
+	 */
+	void serve(SocketAddress addr) throws IOException {
+		ServerSocketChannel server = addr instanceof UnixDomainSocketAddress
+				? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+				: ServerSocketChannel.open();
+		server.bind(addr);
+		try {
+			while(true){
+				final SocketChannel ch = server.accept();
+				executor.execute(new Runnable() {
+					public void run() {
+						handle(ch);
+					}
+				});
+			}
+		} finally {
+			server.close();
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Serve the requests of a connection until it is closed
+	 */
+	void handle(SocketChannel ch) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(SocketStreams.in(ch), 65536));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(SocketStreams.out(ch), 65536));
+			while(true){
+				int id;
+				try {
+					id = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte kind = in.readByte();
+				String script = in.readUTF();
+				int arg = in.readInt();
+				int result = 0;
+				String failure = null;
+				try {
+					result = lookup(kind, script).eval(arg, NullSink.INSTANCE, fuel);
+				} catch (Error e) {
+					failure = "error " + e.getMessage();
+				} catch (RuntimeException e) {
+					//a bug must not cut the connection and its pipelined requests
+					failure = "internal error " + e;
+				}
+				out.writeInt(id);
+				if(failure == null){
+					out.writeByte(OK);
+					out.writeInt(result);
+				} else {
+					out.writeByte(FAILED);
+					out.writeUTF(failure);
+				}
+				//answer a whole pipelined batch at once
+				if(in.available() == 0)
+					out.flush();
+			}
+			out.flush();
+		} catch (IOException e) {
+			//connection lost : nothing to answer
+		} finally {
+			try {
+				ch.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+	}
+
+	private MiniScript lookup(byte kind, String script) throws Error {
+		if(kind == BY_SOURCE)
+			return cache.get(script);
+		if(kind != BY_NAME)
+			throw new Error("unknown request kind " + kind);
+		MiniScript ms = byName.get(script);
+		if(ms == null){
+			//only plain file names of the script directory
+			if(script.indexOf('/') >= 0 || script.indexOf('\\') >= 0 || script.startsWith("."))
+				throw new Error("bad script name " + script);
+			try {
+				File f = new File(scriptDir, script);
+				ms = cache.get(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new Error("file not found " + script);
+			}
+			//the watcher may have put a newer version meanwhile
+			MiniScript prev = byName.putIfAbsent(script, ms);
+			if(prev != null)
+				ms = prev;
+		}
+		return ms;
+	}
+}
+
+/**
+ * Streams over a blocking SocketChannel that can be read and written at
+ * the same time by two threads (Channels.newInputStream / newOutputStream
+ * share a lock and would block each other).
+ */
+class SocketStreams {
+	static InputStream in(final SocketChannel ch) {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte b[] = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			public int read(byte b[], int off, int len) throws IOException {
+				if(len == 0)
+					return 0;
+				return ch.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	static OutputStream out(final SocketChannel ch) {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte b[], int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				while(buf.hasRemaining())
+					ch.write(buf);
+			}
+		};
+	}
+}
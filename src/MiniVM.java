@@ -21,6 +21,8 @@ Result: 40320
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -166,7 +168,9 @@ enum OpCode
     M_jsr		(13, true, "gosub"),
     M_ret		(14, false, "return"),
     M_halt		(15, false, "stop execution"),
-    M_pval		(16, false, "print value");
+    M_pval		(16, false, "print value"),
+    M_if_cmplt	(17, true, "pop x2, jlt"),
+    M_if_cmpgt	(18, true, "pop x2, jgt");
 
 	OpCode(int val, boolean arg, String desc){
 		this.value = val;
@@ -222,6 +226,8 @@ class SymTab {
 		}
 		if (i == countSym) {
 			//if we reached the end of table, add the new symbol
+			if (i == t.length)
+				t = Arrays.copyOf(t, 2 * t.length);
 			t[i] = s;
 			countSym++;
 		}
@@ -235,6 +241,13 @@ class SymTab {
 	public int getCount(){
 		return countSym;
 	}
+
+	/**
+	 * @return the name of a symbol
+	 */
+	String getName(int index){
+		return t[index];
+	}
 }
 
 /**
@@ -248,6 +261,9 @@ class Lexer {
 	private StreamTokenizer st;
 	private int tok;		// tokenizer token
 	private SymTab symbols;
+	private int tokens;		// number of scanned tokens
+	private boolean timed;	// measure the time spent in scan()
+	private long scanNanos;
 
 	/**
 	 * Initialize the parser
@@ -262,6 +278,21 @@ class Lexer {
 		} catch (FileNotFoundException e) {
 			throw new Error("file not found" + " " + e.getMessage());
 		}
+		init(symbols);
+	}
+
+	/**
+	 * Initialize the parser on an in-memory source
+	 * 
+	 * @param source
+	 *            the script text
+	 */
+	Lexer(Reader source, SymTab symbols) {
+		this.source = source;
+		init(symbols);
+	}
+
+	private void init(SymTab symbols) {
 		st = new StreamTokenizer(source);
 		st.ordinaryChar('/');
 		st.ordinaryChar('-');
@@ -274,6 +305,18 @@ class Lexer {
 	 * @throws Error
 	 */
 	public Token scan() throws Error {
+		tokens++;
+		if(!timed)
+			return nextToken();
+		long t0 = System.nanoTime();
+		try {
+			return nextToken();
+		} finally {
+			scanNanos += System.nanoTime() - t0;
+		}
+	}
+
+	private Token nextToken() throws Error {
 		try {
 			tok = st.nextToken();
 			switch (tok) {
@@ -328,6 +371,34 @@ class Lexer {
 			return -1;
 	}
 	
+	/**
+	 * enable the measure of the time spent in scan()
+	 */
+	void setTimed(boolean timed){
+		this.timed = timed;
+	}
+
+	/**
+	 * @return the number of tokens scanned so far
+	 */
+	public int getTokenCount(){
+		return tokens;
+	}
+
+	/**
+	 * @return the time spent in scan() if timed
+	 */
+	public long getScanNanos(){
+		return scanNanos;
+	}
+
+	/**
+	 * @return the number of symbols in the symbol table
+	 */
+	public int getSymbolCount(){
+		return symbols.getCount();
+	}
+
 	/**
 	 * get the current identifier
 	 * @return
@@ -352,8 +423,7 @@ class Lexer {
 <pre>
 Program    = Function
 Function   = identifier "(" identifier ")" Block
-Block      = "{" [Statements] "}"
-Statements = Statement Statements
+Block      = "{" {Statement} "}"
 Statement  = identifier "=" Expression ";" |
              "if" Condition Statement "else" Statement |
              "while" Condition Statement |
@@ -372,9 +442,11 @@ Factor     = number |
 See the {@link VM} class for the detail on bytecodes
  */
 class Parser {
-	private static Token curToken;
+	private Token curToken;
 	private Lexer lx;
 	private BinCode bin;
+	private Token opStack[] = new Token[16];	// pending operators of expression()
+	private int opTop;
 
 	/**
 	 * Entry point for grammar
@@ -387,9 +459,39 @@ class Parser {
 		this.lx = lex;
 		this.bin = bin;
 
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		long t0 = metrics ? System.nanoTime() : 0;
+		lex.setTimed(metrics);
+		try {
+			next();
+			bin.start();
+			function();
+		} catch (Error e) {
+			if(metrics)
+				MiniMetrics.get().compileFailed();
+			throw e;
+		}
+		if(metrics)
+			MiniMetrics.get().compiled(lex.getTokenCount(), lex.getSymbolCount(),
+					bin.getInstructionCount(), bin.getCurOffset(),
+					lex.getScanNanos(), System.nanoTime() - t0 - lex.getScanNanos());
+	}
+
+	/**
+	 * Entry point for a sequence of statements out of their function,
+	 * parsed up to the end of the source. The calls jump to the start
+	 * address of bin (see {@link BinCode#fragment(int)}).
+	 * 
+	 * @param lex a Lexer object that provides tokens
+	 * @param bin
+	 * @throws Error
+	 */
+	void statements(Lexer lex, BinCode bin) throws Error {
+		this.lx = lex;
+		this.bin = bin;
 		next();
-		bin.start();
-		function();
+		while (curToken != Token.T_eof)
+			statement();
 	}
 
 	private void function() throws Error {
@@ -408,10 +510,8 @@ class Parser {
 	}
 
 	private void statements() throws Error {
-		if (curToken != Token.T_crb) {
+		while (curToken != Token.T_crb)
 			statement();
-			statements();
-		}
 	}
 
 	private void statement() throws Error {
@@ -500,67 +600,101 @@ class Parser {
 		}
 	}
 
+	/**
+	 * Precedence climbing with an explicit operator stack, so that the
+	 * depth of the Java stack does not grow with the nesting of the
+	 * parentheses. The operands are emitted as they come, an operator when
+	 * the next one does not bind tighter (the binary operators group to
+	 * the left). An open parenthesis or call stays on the stack as a
+	 * marker until its closing parenthesis.
+	 */
 	private void expression() throws Error {
-		term();
-		while (curToken == Token.T_add || curToken == Token.T_sub) {
-			switch (curToken) {
-			case T_add:
+		int base = opTop;
+		int open = 0;				// markers of this expression on the stack
+		boolean operand = true;		// an operand is expected
+		while (true) {
+			if (operand) {
+				switch (curToken) {
+				case T_num:
+					bin.instr(OpCode.M_push, lx.getNumeric());
+					next();
+					operand = false;
+					break;
+				case T_id:
+					int id = lx.getID();
+					next();
+					if (curToken == Token.T_lbr) {
+						next();
+						pushOp(Token.T_id);		// call marker
+						open++;
+					} else {
+						bin.instr(OpCode.M_load, id);
+						operand = false;
+					}
+					break;
+				case T_lbr:
+					next();
+					pushOp(Token.T_lbr);
+					open++;
+					break;
+				default:
+					throw new Error("expression " + curToken);
+				}
+			} else if (precedence(curToken) > 0) {
+				while (opTop > base && precedence(opStack[opTop - 1]) >= precedence(curToken))
+					emitOp(opStack[--opTop]);
+				pushOp(curToken);
 				next();
-				term();
-				bin.instr(OpCode.M_add);
-				break;
-			case T_sub:
+				operand = true;
+			} else if (curToken == Token.T_rbr && open > 0) {
+				while (precedence(opStack[opTop - 1]) > 0)
+					emitOp(opStack[--opTop]);
+				open--;
+				if (opStack[--opTop] == Token.T_id)
+					bin.instr(OpCode.M_jsr, bin.getStartAddr());
 				next();
-				term();
-				bin.instr(OpCode.M_sub);
+			} else
 				break;
-			}
 		}
+		if (open > 0)
+			throw new Error("syntax " + curToken);	// unclosed parenthesis
+		while (opTop > base)
+			emitOp(opStack[--opTop]);
 	}
 
-	private void term() throws Error {
-		factor();
-		while (curToken == Token.T_mul || curToken == Token.T_div) {
-			switch (curToken) {
-			case T_mul:
-				next();
-				term();
-				bin.instr(OpCode.M_mul);
-				break;
-			case T_div:
-				next();
-				term();
-				bin.instr(OpCode.M_div);
-				break;
-			}
+	private static int precedence(Token t) {
+		switch (t) {
+		case T_add:
+		case T_sub:
+			return 1;
+		case T_mul:
+		case T_div:
+			return 2;
+		default:
+			return 0;
 		}
 	}
 
-	private void factor() throws Error {
-		switch (curToken) {
-		case T_num:
-			bin.instr(OpCode.M_push, lx.getNumeric());
-			next();
+	private void pushOp(Token t) {
+		if (opTop == opStack.length)
+			opStack = Arrays.copyOf(opStack, 2 * opTop);
+		opStack[opTop++] = t;
+	}
+
+	private void emitOp(Token t) {
+		switch (t) {
+		case T_add:
+			bin.instr(OpCode.M_add);
 			break;
-		case T_id:
-			int id = lx.getID();
-			next();
-			if (curToken != Token.T_lbr)
-				bin.instr(OpCode.M_load, id);
-			else {
-				next();
-				expression();
-				match(Token.T_rbr);
-				bin.instr(OpCode.M_jsr, bin.getStartAddr());
-			}
+		case T_sub:
+			bin.instr(OpCode.M_sub);
 			break;
-		case T_lbr:
-			next();
-			expression();
-			match(Token.T_rbr);
+		case T_mul:
+			bin.instr(OpCode.M_mul);
 			break;
 		default:
-			throw new Error("expression " + curToken);
+			bin.instr(OpCode.M_div);
+			break;
 		}
 	}
 
@@ -593,10 +727,19 @@ class BinCode {
 	private int code[]; // target code
 	private int pc; // program counter
 	private int start_adr; // start address
+	private int instructions; // number of emitted instructions
 
 	public void init(int code_max) {
 		code = new int[code_max];
 		pc = 0;
+		instructions = 0;
+	}
+
+	/**
+	 * @return the number of emitted instructions (operands excluded)
+	 */
+	public int getInstructionCount() {
+		return instructions;
 	}
 
 	public int getCurOffset() {
@@ -617,6 +760,15 @@ class BinCode {
 		start_adr = pc;
 	}
 
+	/**
+	 * Emit a fragment of a function body instead of a program: the code
+	 * starts at 0, so the jump addresses are relative to the fragment,
+	 * and the calls jump to the start address of the whole program
+	 */
+	public void fragment(int startAddr) {
+		start_adr = startAddr;
+	}
+
 	/**
 	 * Assemble a single opcode
 	 * 
@@ -626,6 +778,7 @@ class BinCode {
 	public void instr(OpCode instruction) {
 		code[pc] = instruction.getValue();
 		pc = pc + 1;
+		instructions++;
 	}
 
 	/**
@@ -640,6 +793,7 @@ class BinCode {
 		code[pc] = instruction.getValue();
 		code[pc + 1] = operand;
 		pc = pc + 2;
+		instructions++;
 	}
 
 	public void setjump(int adr) {
@@ -689,7 +843,11 @@ class BinCode {
 14    return from function
 15    stop execution
 16    print variable value
+17 a  jump if ... less
+18 a  jump if ... greater
 </pre>
+17 and 18 are not generated by the Parser, they are used to invert
+11 and 10 when the blocks are reordered (see {@link MiniOpt.Cfg#layout}).
 */
 class VM {
 	private int p[]; // program code
@@ -699,23 +857,81 @@ class VM {
 	private int fp; // frame pointer
 	private int fs; // frame size
 	
+	private long executed;	// statistics of the current / last run
+	private int calls;
+	private int maxStack;
+	private int maxCalls;
+	private int depth;		// current call depth
+	private long runNanos;
+	private boolean halted;
+	
 	private boolean bTrace = false;
+	private OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+	private BranchProfile profile;
 
 	VM(int code[], SymTab symbols, int stack_max) {
-		init(code, symbols, stack_max);
+		init(code, symbols.getCount(), stack_max);
+	}
+
+	/**
+	 * @param frame_size the number of local variables of the function
+	 */
+	VM(int code[], int frame_size, int stack_max) {
+		init(code, frame_size, stack_max);
 	}
 	
 	public void setTrace(boolean trace){
 		this.bTrace = trace;
 	}
 
-	void init(int code[], SymTab symbols, int stack_max) {
+	/**
+	 * Set the destination of the print statement
+	 * @param out the writer to use, null to discard the output
+	 */
+	public void setOutput(PrintWriter out){
+		this.out = out == null ? NullSink.INSTANCE : new WriterSink(out);
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out){
+		this.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * Record the branches of the next runs
+	 * @param profile the counters to increment, null to stop profiling
+	 */
+	public void setProfile(BranchProfile profile){
+		this.profile = profile;
+	}
+
+	/**
+	 * Go back to the initial state, so that the same VM can run
+	 * the program again
+	 */
+	void reset() {
+		ip = 0;
+		sp = 0;
+		fp = 0;
+		executed = 0;
+		calls = 0;
+		maxStack = 0;
+		maxCalls = 0;
+		depth = 0;
+		runNanos = 0;
+		halted = false;
+	}
+
+	void init(int code[], int frame_size, int stack_max) {
 		p = code;
 		ip = 0;
 		s = new int[stack_max];
 		sp = 0;
 		fp = 0;
-		fs = symbols.getCount();
+		fs = frame_size;
 	}
 
 	/**
@@ -726,9 +942,42 @@ class VM {
 	 * @throws Error
 	 */
 	int exec(int arg) throws Error {
+		start(arg);
+		exec();
+		return s[0];
+	}
+
+	/**
+	 * Prepare a run with an argument without executing anything,
+	 * the program is then executed by {@link #run(long)}
+	 * 
+	 * @param arg an initial value that is pushed into the stack
+	 */
+	void start(int arg) {
+		reset();
 		s[0] = arg;
 		sp++;
-		exec();
+	}
+
+	/**
+	 * @return true if the program reached M_halt
+	 */
+	boolean isHalted() {
+		return halted;
+	}
+
+	/**
+	 * @return true if the execution ran off the end of the code, which
+	 * happens when a function ends without return
+	 */
+	boolean isPastEnd() {
+		return ip >= p.length;
+	}
+
+	/**
+	 * @return the result of a halted program
+	 */
+	int getResult() {
 		return s[0];
 	}
 	
@@ -738,7 +987,27 @@ class VM {
 	 * @throws Error
 	 */
 	void exec() throws Error {
+		run(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Execute the program from the current state with an instruction
+	 * budget. The VM can only be preempted at a jump (M_goto, which ends
+	 * every while loop, or a conditional jump backward, which ends a loop
+	 * rotated by {@link ProfileLayout}) or at a call (M_jsr): once the
+	 * budget is used up, it stops after the next of these instructions
+	 * and a later call of run() goes on from there.
+	 * 
+	 * @param fuel the number of instructions that may be executed
+	 * @return true if the program halted, false if it was preempted
+	 * @throws Error
+	 */
+	boolean run(long fuel) throws Error {
 		OpCode op;
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		long t0 = metrics ? System.nanoTime() : 0;
+		long count = 0;
+		int ncalls = calls, depth = this.depth, maxDepth = maxCalls, maxSp = Math.max(maxStack, sp);
 //		if(bTrace){
 //			//System.out.print("Symbols : ");
 //			//for(int s: symb)
@@ -748,8 +1017,10 @@ class VM {
 //		}
 			
 		//while ((op = OpCode.fromInt(p[ip])) != OpCode.M_halt) {
+		loop:
 		do {
 			op = OpCode.fromInt(p[ip]);
+			count++;
 			if(bTrace){
 				System.out.print("                     ");
 				dumpStack();
@@ -797,22 +1068,40 @@ class VM {
 					break;
 				case M_if_cmpeq:
 					sp = sp - 2;
-					ip = s[sp] == s[sp + 1] ? p[ip + 1] : ip + 2;
+					if(branch(s[sp] == s[sp + 1]) && count >= fuel)
+						break loop;
 					break;
 				case M_if_cmpne:
 					sp = sp - 2;
-					ip = s[sp] != s[sp + 1] ? p[ip + 1] : ip + 2;
+					if(branch(s[sp] != s[sp + 1]) && count >= fuel)
+						break loop;
 					break;
 				case M_if_cmple:
 					sp = sp - 2;
-					ip = s[sp] <= s[sp + 1] ? p[ip + 1] : ip + 2;
+					if(branch(s[sp] <= s[sp + 1]) && count >= fuel)
+						break loop;
 					break;
 				case M_if_cmpge:
 					sp = sp - 2;
-					ip = s[sp] >= s[sp + 1] ? p[ip + 1] : ip + 2;
+					if(branch(s[sp] >= s[sp + 1]) && count >= fuel)
+						break loop;
+					break;
+				case M_if_cmplt:
+					sp = sp - 2;
+					if(branch(s[sp] < s[sp + 1]) && count >= fuel)
+						break loop;
+					break;
+				case M_if_cmpgt:
+					sp = sp - 2;
+					if(branch(s[sp] > s[sp + 1]) && count >= fuel)
+						break loop;
 					break;
 				case M_goto:
 					ip = p[ip + 1];
+					if(profile != null)
+						profile.jumps++;
+					if(count >= fuel)
+						break loop;
 					break;
 				case M_jsr:
 					s[sp] = ip + 2; 		// save return address
@@ -821,15 +1110,25 @@ class VM {
 					sp = fp + fs; 			// set sp
 					s[fp + 1] = s[fp - 3];	// copy argument
 					ip = p[ip + 1];			// goto start address
+					ncalls++;
+					if(profile != null)
+						profile.calls++;
+					if(++depth > maxDepth)
+						maxDepth = depth;
+					if(sp > maxSp)
+						maxSp = sp;
+					if(count >= fuel)
+						break loop;
 					break;
 				case M_ret:
 					s[fp - 3] = s[sp - 1];	// copy return value
 					sp = fp - 2;			// reset sp
 					fp = s[sp + 1];			// reset fp
 					ip = s[sp];				// goto return address
+					depth--;
 					break;
 				case M_pval:
-					System.out.println(s[sp-1]);
+					out.print(s[sp-1]);
 					sp--;
 					ip++;
 					break;
@@ -840,11 +1139,120 @@ class VM {
 					throw new Error("illegal vm code " + p[ip]);
 			} 
 		} while (op != OpCode.M_halt);
+		executed += count;
+		calls = ncalls;
+		this.depth = depth;
+		maxCalls = maxDepth;
+		maxStack = maxSp;
+		halted = (op == OpCode.M_halt);
+		if(metrics){
+			runNanos += System.nanoTime() - t0;
+			if(halted)
+				MiniMetrics.get().ran(executed, calls, maxCalls, maxStack, runNanos);
+		}
 //		if(bTrace){
 //			System.out.print("                     ");
 //			dumpStack();
 //			System.out.println();
 //		}
+		return halted;
+	}
+
+	/**
+	 * Go to the address after a conditional jump
+	 * @return true if the jump went backward, the end of a rotated loop
+	 */
+	private boolean branch(boolean jump) {
+		if(profile != null)
+			profile.record(ip, jump);
+		if(!jump){
+			ip += 2;
+			return false;
+		}
+		int from = ip;
+		ip = p[ip + 1];
+		return ip <= from;
+	}
+
+	/**
+	 * @return the program, not copied
+	 */
+	int[] getCode() {
+		return p;
+	}
+
+	int getFrameSize() {
+		return fs;
+	}
+
+	int getStackSize() {
+		return s.length;
+	}
+
+	/**
+	 * @return the number of bytes written by {@link #saveState}
+	 */
+	int getStateSize() {
+		return 9 * 4 + 8 + 4 * sp;
+	}
+
+	/**
+	 * Write the registers, the statistics and the live part of the stack
+	 * of a VM that is not running (see {@link VMSnapshot})
+	 */
+	void saveState(ByteBuffer buf) {
+		buf.putInt(s.length).putInt(ip).putInt(sp).putInt(fp).putInt(halted ? 1 : 0);
+		buf.putInt(depth).putInt(calls).putInt(maxCalls).putInt(maxStack).putLong(executed);
+		buf.asIntBuffer().put(s, 0, sp);
+		buf.position(buf.position() + 4 * sp);
+	}
+
+	/**
+	 * Continue a run written by {@link #saveState}: the next call of
+	 * {@link #run(long)} goes on from the saved instruction. The state
+	 * must have been checked against the program and the stack size.
+	 */
+	void restoreState(ByteBuffer buf) {
+		reset();
+		buf.getInt();
+		ip = buf.getInt();
+		sp = buf.getInt();
+		fp = buf.getInt();
+		halted = buf.getInt() != 0;
+		depth = buf.getInt();
+		calls = buf.getInt();
+		maxCalls = buf.getInt();
+		maxStack = buf.getInt();
+		executed = buf.getLong();
+		buf.asIntBuffer().get(s, 0, sp);
+	}
+
+	/**
+	 * @return the number of instructions executed by the last run
+	 */
+	long getExecutedCount() {
+		return executed;
+	}
+
+	/**
+	 * @return the number of calls (M_jsr) of the last run
+	 */
+	int getCallCount() {
+		return calls;
+	}
+
+	/**
+	 * @return the highest stack pointer at a call of the last run
+	 */
+	int getMaxStack() {
+		return maxStack;
+	}
+
+	/**
+	 * @return the deepest recursion of the last run
+	 */
+	int getMaxCallDepth() {
+		return maxCalls;
 	}
 
 	/**
@@ -0,0 +1,457 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch mode : keeps the compiled programs of the .mini files of a
+ * directory up to date.
+ * <p>
+ * A WatchService reports the created, changed and deleted files. The
+ * changes are compiled once no event came for DEBOUNCE_MS, so that a file
+ * is not compiled while it is being written. A
+ * changed file is recompiled by its {@link IncrementalCompiler}, which
+ * parses only the statements of the function body that changed. The
+ * new program then replaces the old one in the map of the programs by
+ * file name with a single put: the next lookups get the new program,
+ * while the executions already running keep the MiniScript they looked
+ * up and end on the old code. A file that does not compile leaves the
+ * old program in place.
+ * <pre>
+ * MiniWatch [dir arg]
+ * </pre>
+ * With a directory, each change is compiled and run with the argument,
+ * without arguments a demo edits a script in a temporary directory.
+ */
+public class MiniWatch {
+	static final String SUFFIX = ".mini";
+	static final long DEBOUNCE_MS = 50;
+
+	private final Path dir;
+	private final Map<String, MiniScript> scripts;
+	private final Map<String, IncrementalCompiler> compilers = new ConcurrentHashMap<String, IncrementalCompiler>();
+	private final WatchService ws;
+	private Thread thread;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length >= 2){
+			final int arg = Integer.parseInt(args[1]);
+			final Map<String, MiniScript> scripts = new ConcurrentHashMap<String, MiniScript>();
+			MiniWatch watch = new MiniWatch(new File(args[0]).toPath(), scripts) {
+				@Override
+				void swapped(String name, MiniScript ms) {
+					super.swapped(name, ms);
+					try {
+						System.out.println(name + "(" + arg + ") = " + ms.eval(arg));
+					} catch (Error e) {
+						System.out.println(name + " : error " + e.getMessage());
+					}
+				}
+			};
+			watch.start();
+			watch.thread.join();
+			return;
+		}
+
+		Path dir = Files.createTempDirectory("miniwatch");
+		Path file = dir.resolve("sum.mini");
+		String v1 = "sum(n) {\n\ti = 0;\n\ts = 0;\n\twhile (i < n) {\n\t\ts = s + i;\n\t\ti = i + 1;\n\t}\n"
+				+ "\tif (s > 100) print s; else print 0;\n\treturn s;\n}\n";
+		Files.write(file, v1.getBytes(StandardCharsets.UTF_8));
+		final Map<String, MiniScript> scripts = new ConcurrentHashMap<String, MiniScript>();
+		MiniWatch watch = new MiniWatch(dir, scripts);
+		watch.start();
+		final MiniScript old = scripts.get("sum.mini");
+		System.out.println("sum(10) = " + old.eval(10));
+
+		//a long run on the first version while the file changes
+		final int inFlight[] = new int[1];
+		Thread runner = new Thread(new Runnable() {
+			public void run() {
+				try {
+					inFlight[0] = old.eval(30000000);
+				} catch (Error e) {
+					System.out.println("error " + e.getMessage());
+				}
+			}
+		});
+		runner.start();
+		Files.write(file, v1.replace("s = s + i;", "s = s + i * 2;").getBytes(StandardCharsets.UTF_8));
+		MiniScript ms = await(scripts, "sum.mini", old);
+		System.out.println("sum(10) = " + ms.eval(10) + " after the edit");
+		runner.join();
+		System.out.println("sum(30000000) started before the edit = " + inFlight[0]);
+
+		Files.write(file, v1.replace("return s;", "return s +;").getBytes(StandardCharsets.UTF_8));
+		Thread.sleep(500);
+		System.out.println("after a syntax error, sum(10) = " + scripts.get("sum.mini").eval(10));
+		watch.stop();
+		Files.delete(file);
+		Files.delete(dir);
+	}
+
+	/**
+	 * Wait for a new program under a name, at most 10 seconds
+	 */
+	private static MiniScript await(Map<String, MiniScript> scripts, String name, MiniScript old) throws InterruptedException {
+		for(int i = 0; i < 1000 && scripts.get(name) == old; i++)
+			Thread.sleep(10);
+		return scripts.get(name);
+	}
+
+	/**
+	 * @param dir the directory of the scripts
+	 * @param scripts the programs by file name, updated by the watcher
+	 */
+	MiniWatch(Path dir, Map<String, MiniScript> scripts) throws IOException {
+		this.dir = dir;
+		this.scripts = scripts;
+		this.ws = dir.getFileSystem().newWatchService();
+		dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+	}
+
+	/**
+	 * Compile the scripts of the directory, then watch it in a daemon thread
+	 */
+	void start() throws IOException {
+		scan();
+		thread = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "MiniWatch " + dir);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() throws IOException {
+		ws.close();
+	}
+
+	private void scan() throws IOException {
+		DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX);
+		try {
+			for(Path f : files)
+				update(f.getFileName().toString());
+		} finally {
+			files.close();
+		}
+	}
+
+	private void watch() {
+		try {
+			while(true){
+				//gather the events until the directory is quiet, a file
+				//being written sends several ENTRY_MODIFY
+				Set<String> changed = new LinkedHashSet<String>();
+				boolean valid = true;
+				for(WatchKey key = ws.take(); key != null && valid; key = ws.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS)){
+					for(WatchEvent<?> ev : key.pollEvents()){
+						if(ev.kind() == StandardWatchEventKinds.OVERFLOW){
+							scan();
+							continue;
+						}
+						String name = ev.context().toString();
+						if(!name.endsWith(SUFFIX))
+							continue;
+						if(ev.kind() == StandardWatchEventKinds.ENTRY_DELETE){
+							changed.remove(name);
+							compilers.remove(name);
+							scripts.remove(name);
+						} else
+							changed.add(name);
+					}
+					valid = key.reset();
+				}
+				for(String name : changed)
+					update(name);
+				if(!valid)
+					break;		// the directory is gone
+			}
+		} catch (ClosedWatchServiceException e) {
+			//stopped
+		} catch (InterruptedException e) {
+			//stopped
+		} catch (IOException e) {
+			System.out.println("watch of " + dir + " failed : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Recompile a script and swap it in if it compiles
+	 */
+	void update(String name) {
+		String source;
+		try {
+			source = new String(Files.readAllBytes(dir.resolve(name)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return;		// deleted meanwhile, the event follows
+		}
+		IncrementalCompiler ic = compilers.get(name);
+		if(ic == null){
+			ic = new IncrementalCompiler(MiniScript.DEFAULT_STACK);
+			compilers.put(name, ic);
+		}
+		try {
+			MiniScript ms = ic.compile(source);
+			if(scripts.get(name) != ms)
+				swapped(name, ms);
+		} catch (Error e) {
+			System.out.println(name + " : " + e.getMessage() + ", the previous version stays");
+		}
+	}
+
+	/**
+	 * Publish a new program
+	 */
+	void swapped(String name, MiniScript ms) {
+		IncrementalCompiler ic = compilers.get(name);
+		scripts.put(name, ms);
+		System.out.println(String.format("%s : %d statements parsed, %d reused", name,
+				ic.getParsedCount(), ic.getReusedCount()));
+	}
+}
+
+/**
+ * Compiler that keeps the code of each top level statement of a function
+ * body and recompiles only the statements whose text changed.
+ * <p>
+ * The body is cut into top level statements with a scan of the braces
+ * (a statement ends with a ';' or a '}' at the body level, unless an
+ * else follows). Each statement is compiled on its own with the Parser
+ * into position independent code: its jumps are relative to its first
+ * instruction and are relocated when the program is assembled, the
+ * calls jump to the function start that does not move. The symbol table
+ * is kept from one version to the next, so the unchanged statements keep
+ * their variable indices and a new variable gets a new slot.
+ * <p>
+ * When the function header changes, or when a statement does not compile
+ * alone, the whole program is compiled again from scratch, and the error
+ * reported is the one of the normal compiler.
+ */
+class IncrementalCompiler {
+	private final int stackSize;
+	private String source;
+	private String header;
+	private SymTab symbols;
+	private List<String> texts = new ArrayList<String>();
+	private List<int[]> fragments = new ArrayList<int[]>();
+	private MiniScript script;
+	private int parsed, reused;
+
+	IncrementalCompiler(int stackSize) {
+		this.stackSize = stackSize;
+	}
+
+	/**
+	 * @return the program of the source, the previous one if the source did
+	 * not change
+	 * @throws Error on syntax errors
+	 */
+	MiniScript compile(String src) throws Error {
+		if(src.equals(source))
+			return script;
+		int open = src.indexOf('{'), close = open < 0 ? -1 : closing(src, open);
+		if(close < 0)
+			return full(src);
+		String head = src.substring(0, open).trim();
+		List<String> newTexts = split(src.substring(open + 1, close));
+		if(!head.equals(header))
+			return full(src);
+
+		//unchanged statements at both ends
+		int n = texts.size(), m = newTexts.size(), pre = 0, post = 0;
+		while (pre < n && pre < m && texts.get(pre).equals(newTexts.get(pre)))
+			pre++;
+		while (post < n - pre && post < m - pre && texts.get(n - 1 - post).equals(newTexts.get(m - 1 - post)))
+			post++;
+		List<int[]> newFragments = new ArrayList<int[]>(fragments.subList(0, pre));
+		try {
+			for(int i = pre; i < m - post; i++)
+				newFragments.add(fragment(newTexts.get(i), symbols));
+		} catch (Error e) {
+			return full(src);
+		}
+		newFragments.addAll(fragments.subList(n - post, n));
+		texts = newTexts;
+		fragments = newFragments;
+		parsed = m - post - pre;
+		reused = pre + post;
+		return publish(src);
+	}
+
+	/**
+	 * Compile every statement with a new symbol table. The state of the
+	 * previous version is only replaced once the new one compiled, so a
+	 * half written file does not lose the statements to reuse.
+	 */
+	private MiniScript full(String src) throws Error {
+		int open = src.indexOf('{'), close = open < 0 ? -1 : closing(src, open);
+		SymTab newSymbols = new SymTab();
+		List<String> newTexts;
+		List<int[]> newFragments = new ArrayList<int[]>();
+		try {
+			if(close < 0)
+				throw new Error("syntax");
+			BinCode bin = new BinCode();
+			bin.init(MiniVM.code_max);
+			new Parser().program(new Lexer(new StringReader(src.substring(0, open) + "{}"), newSymbols), bin);
+			newTexts = split(src.substring(open + 1, close));
+			for(String text : newTexts)
+				newFragments.add(fragment(text, newSymbols));
+		} catch (Error e) {
+			//give the error of the normal compiler, which may also succeed
+			//where the statements could not be compiled alone
+			MiniScript ms = MiniScript.compile(new StringReader(src), MiniVM.code_max + 2 * src.length(), stackSize);
+			header = null;
+			texts = new ArrayList<String>();
+			fragments = new ArrayList<int[]>();
+			source = src;
+			script = ms;
+			parsed = 0;
+			reused = 0;
+			return ms;
+		}
+		header = src.substring(0, open).trim();
+		symbols = newSymbols;
+		texts = newTexts;
+		fragments = newFragments;
+		parsed = texts.size();
+		reused = 0;
+		return publish(src);
+	}
+
+	/**
+	 * Assemble the fragments after the program start
+	 */
+	private MiniScript publish(String src) {
+		int size = 3;
+		for(int f[] : fragments)
+			size += f.length;
+		int code[] = new int[size];
+		code[0] = OpCode.M_jsr.getValue();
+		code[1] = 3;
+		code[2] = OpCode.M_halt.getValue();
+		int pc = 3;
+		for(int f[] : fragments){
+			for(int i = 0; i < f.length; i++){
+				OpCode op = OpCode.fromInt(f[i]);
+				code[pc + i] = f[i];
+				if(op.hasArg()){
+					i++;
+					code[pc + i] = isJump(op) ? f[i] + pc : f[i];
+				}
+			}
+			pc += f.length;
+		}
+		source = src;
+		script = new MiniScript(code, symbols.getCount(), stackSize);
+		return script;
+	}
+
+	private static boolean isJump(OpCode op) {
+		switch (op) {
+			case M_if_cmpeq:
+			case M_if_cmpne:
+			case M_if_cmple:
+			case M_if_cmpge:
+			case M_if_cmplt:
+			case M_if_cmpgt:
+			case M_goto:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Compile a statement alone, its jumps relative to its start
+	 */
+	private static int[] fragment(String text, SymTab symbols) throws Error {
+		BinCode bin = new BinCode();
+		bin.init(2 * text.length() + 16);
+		bin.fragment(3);
+		try {
+			new Parser().statements(new Lexer(new StringReader(text), symbols), bin);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new Error("statement too large");
+		}
+		int code[] = new int[bin.getCurOffset()];
+		System.arraycopy(bin.getCode(), 0, code, 0, code.length);
+		return code;
+	}
+
+	/**
+	 * @return the index of the brace that closes the one at open, -1 if none
+	 */
+	static int closing(String src, int open) {
+		int depth = 0;
+		for(int i = open; i < src.length(); i++){
+			char c = src.charAt(i);
+			if(c == '{')
+				depth++;
+			else if(c == '}' && --depth == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Cut a function body into its top level statements
+	 */
+	static List<String> split(String body) {
+		List<String> list = new ArrayList<String>();
+		int depth = 0, start = 0;
+		for(int i = 0; i < body.length(); i++){
+			char c = body.charAt(i);
+			if(c == '{')
+				depth++;
+			else if(c == '}')
+				depth--;
+			if(depth == 0 && (c == ';' || c == '}') && !elseFollows(body, i + 1)){
+				list.add(body.substring(start, i + 1).trim());
+				start = i + 1;
+			}
+		}
+		if(body.substring(start).trim().length() > 0)
+			list.add(body.substring(start).trim());
+		return list;
+	}
+
+	private static boolean elseFollows(String s, int from) {
+		int i = from;
+		while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+			i++;
+		return s.startsWith("else", i) && (i + 4 == s.length() || !Character.isLetterOrDigit(s.charAt(i + 4)));
+	}
+
+	/**
+	 * @return the number of statements compiled by the last change
+	 */
+	int getParsedCount() {
+		return parsed;
+	}
+
+	/**
+	 * @return the number of statements whose code was kept by the last change
+	 */
+	int getReusedCount() {
+		return reused;
+	}
+}
@@ -0,0 +1,110 @@
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Destination of the values printed by a VM (M_pval).
+ * <p>
+ * Each VM has its own sink, so that concurrent VMs do not share a lock
+ * unless their sinks write to the same stream. The other interpreters
+ * (BatchVM, TosVM, RegVM, ExactVM, ParallelVM, MiniAst) print through a
+ * sink too.
+ * <ul>
+ * <li>{@link ByteSink} : buffered ASCII bytes, flushed explicitly
+ * <li>{@link IntCollector} : the values themselves, for in-process callers
+ * <li>{@link NullSink} : discards everything, for benchmarks
+ * <li>{@link WriterSink} : a PrintWriter, one line per value
+ * </ul>
+ */
+public interface OutputSink {
+	/**
+	 * Output a printed value
+	 */
+	void print(int value);
+
+	/**
+	 * Output a printed value that may not fit in an int (see {@link ExactVM}),
+	 * by default its low 32 bits as the int VMs would print
+	 */
+	default void print(Number value) {
+		print(value.intValue());
+	}
+
+	/**
+	 * Push the buffered values to their destination
+	 */
+	void flush();
+}
+
+/**
+ * Sink that drops the values
+ */
+class NullSink implements OutputSink {
+	static final NullSink INSTANCE = new NullSink();
+
+	public void print(int value) {
+	}
+
+	public void print(Number value) {
+	}
+
+	public void flush() {
+	}
+}
+
+/**
+ * Sink over a PrintWriter : what the VM always did
+ */
+class WriterSink implements OutputSink {
+	private final PrintWriter out;
+
+	WriterSink(PrintWriter out) {
+		this.out = out;
+	}
+
+	public void print(int value) {
+		out.println(value);
+	}
+
+	public void print(Number value) {
+		out.println(value);
+	}
+
+	public void flush() {
+		out.flush();
+	}
+}
+
+/**
+ * Sink that keeps the printed values in an int buffer
+ */
+class IntCollector implements OutputSink {
+	private int values[] = new int[16];
+	private int size;
+
+	public void print(int value) {
+		if(size == values.length)
+			values = Arrays.copyOf(values, size * 2);
+		values[size++] = value;
+	}
+
+	public void flush() {
+	}
+
+	int size() {
+		return size;
+	}
+
+	int get(int i) {
+		if(i >= size)
+			throw new IndexOutOfBoundsException(i + " >= " + size);
+		return values[i];
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+	void clear() {
+		size = 0;
+	}
+}
@@ -0,0 +1,373 @@
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join execution of independent recursive calls.
+ * <p>
+ * In <code>return fib(n-1) + fib(n-2);</code> the result of the first
+ * M_jsr stays on the stack while the argument of the second one is
+ * computed : the calls are independent. When the program is pure (no
+ * M_pval), each M_jsr followed by straight-line code containing another
+ * M_jsr before its result is used is a fork point : the call is started
+ * as a subtask with its own VM stack, the caller goes on with a
+ * placeholder in the result slot, and joins the subtask just before the
+ * instruction that consumes the result (the join point).
+ * <p>
+ * Below the cutoff depth, or when the pool already has enough queued
+ * work, the calls stay sequential. The results are those of {@link VM}.
+ */
+public class ParallelVM {
+	static final int DEFAULT_CUTOFF = 12;
+
+	private static final OpCode ops[] = new OpCode[OpCode.values().length];
+
+	static {
+		for(OpCode op : OpCode.values())
+			ops[op.getValue()] = op;
+	}
+
+	private final int p[]; // program code
+	private final int fs; // frame size
+	private final int stackMax;
+	private final int join[]; // join point of the fork point at each address, -1 if none
+	private final boolean pure;
+	private final int cutoff;
+	private final ForkJoinPool pool;
+	private OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+	//free stacks of each worker thread : a thread that helps while it joins runs nested tasks
+	private final ThreadLocal<ArrayDeque<int[]>> stacks = new ThreadLocal<ArrayDeque<int[]>>() {
+		@Override
+		protected ArrayDeque<int[]> initialValue() {
+			return new ArrayDeque<int[]>();
+		}
+	};
+
+	public static void main(String[] args) throws Error {
+		MiniScript fib = MiniScript.compile("fib(n) { if (n < 2) return n; else return fib(n-1) + fib(n-2); }");
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 27;
+		ParallelVM pvm = new ParallelVM(fib.getCode(), fib.getFrameSize(), MiniVM.stack_max,
+				DEFAULT_CUTOFF, ForkJoinPool.commonPool());
+		System.out.println("fork points : " + pvm.getForkPoints());
+		VM vm = fib.newVM();
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		long tv = 0, tp = 0;
+		int r1 = 0, r2 = 0;
+		for(int round = 0; round < 3; round++){
+			long t0 = System.nanoTime();
+			r1 = vm.exec(n);
+			long t1 = System.nanoTime();
+			r2 = pvm.exec(n);
+			long t2 = System.nanoTime();
+			tv = t1 - t0;
+			tp = t2 - t1;
+		}
+		MiniMetrics.get().setEnabled(metrics);
+		System.out.println(String.format("fib(%d) on %d cores : VM %d ms, ParallelVM %d ms, results %d / %d",
+				n, ForkJoinPool.commonPool().getParallelism(), tv / 1000000, tp / 1000000, r1, r2));
+	}
+
+	/**
+	 * @param code the compiled program
+	 * @param frameSize the number of local variables
+	 * @param stackMax the stack size of the root run and of each subtask
+	 * @param cutoff the call depth from which the calls are sequential
+	 * @param pool the pool running the subtasks
+	 */
+	ParallelVM(int code[], int frameSize, int stackMax, int cutoff, ForkJoinPool pool) {
+		this.p = code;
+		this.fs = frameSize;
+		this.stackMax = stackMax;
+		this.cutoff = cutoff;
+		this.pool = pool;
+		this.join = new int[code.length];
+		Arrays.fill(join, -1);
+		boolean printing = false;
+		for(int i = 0; i < code.length; i += ops[code[i]].hasArg() ? 2 : 1)
+			printing |= ops[code[i]] == OpCode.M_pval;
+		pure = !printing;
+		if(pure)
+			for(int i = 0; i < code.length; i += ops[code[i]].hasArg() ? 2 : 1)
+				if(ops[code[i]] == OpCode.M_jsr && i > 0)
+					join[i] = joinPoint(i + 2);
+	}
+
+	/**
+	 * Look for the instruction that consumes the result of a call
+	 *
+	 * @param from the address after the call
+	 * @return the join point, or -1 if there is a branch or no other
+	 * call before it
+	 */
+	private int joinPoint(int from) {
+		int depth = 0;			// values pushed above the result of the call
+		boolean call = false;
+		for(int i = from; i < p.length; i += ops[p[i]].hasArg() ? 2 : 1){
+			int used, pushed;
+			switch (ops[p[i]]) {
+				case M_nop:
+					used = 0;
+					pushed = 0;
+					break;
+				case M_push:
+				case M_load:
+					used = 0;
+					pushed = 1;
+					break;
+				case M_add:
+				case M_sub:
+				case M_mul:
+				case M_div:
+					used = 2;
+					pushed = 1;
+					break;
+				case M_jsr:
+					used = 1;
+					pushed = 1;
+					break;
+				case M_pop:
+				case M_ret:
+					used = 1;
+					pushed = 0;
+					break;
+				case M_if_cmpeq:
+				case M_if_cmpne:
+				case M_if_cmple:
+				case M_if_cmpge:
+				case M_if_cmplt:
+				case M_if_cmpgt:
+					used = 2;
+					pushed = 0;
+					break;
+				default:
+					return -1;
+			}
+			if(depth < used)
+				return call ? i : -1;
+			if(pushed == 0)
+				return -1;		// a store or a branch in the middle of the expression
+			if(ops[p[i]] == OpCode.M_jsr)
+				call = true;
+			depth += pushed - used;
+		}
+		return -1;
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out) {
+		this.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * @return the addresses of the calls that can be forked
+	 */
+	String getForkPoints() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < join.length; i++)
+			if(join[i] >= 0)
+				sb.append(String.format("%04x -> join at %04x ", i, join[i]));
+		return pure ? sb.toString() : "none, the program prints";
+	}
+
+	/**
+	 * Run the function
+	 *
+	 * @param arg the function argument
+	 * @return the returned value
+	 * @throws Error
+	 */
+	int exec(int arg) throws Error {
+		try {
+			return pool.invoke(new Call(arg, 0));
+		} catch (RuntimeException e) {
+			//the pool may wrap the exception of a subtask again
+			RuntimeException first = e;
+			for(Throwable t = e.getCause(); t != null; t = t.getCause()){
+				if(t instanceof Error)
+					throw (Error) t;
+				if(t.getClass() == e.getClass())
+					first = (RuntimeException) t;
+			}
+			throw first;
+		}
+	}
+
+	/**
+	 * A call run on its own stack
+	 */
+	private class Call extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final int arg;
+		private final int depth;
+
+		Call(int arg, int depth) {
+			this.arg = arg;
+			this.depth = depth;
+		}
+
+		@Override
+		protected Integer compute() {
+			try {
+				return run(arg, depth);
+			} catch (Error e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Run a task on a stack of the current thread, allocated only when
+	 * all the stacks of the thread are in use by the tasks it runs
+	 *
+	 * @param depth the call depth of the caller of the task
+	 */
+	private int run(int arg, int depth) throws Error {
+		ArrayDeque<int[]> free = stacks.get();
+		int s[] = free.isEmpty() ? new int[stackMax] : free.pop();
+		try {
+			return run(s, arg, depth);
+		} finally {
+			free.push(s);
+		}
+	}
+
+	/**
+	 * Interpreter loop of a task, with the pending forks of its frames
+	 *
+	 * @param s the stack of the task, taken from the pool of the thread
+	 */
+	private int run(final int s[], int arg, int depth) throws Error {
+		final int p[] = this.p;
+		int ip = 0, sp = 1, fp = 0;
+		s[0] = arg;
+		//forked calls not joined yet, innermost last
+		int pendSlot[] = new int[8], pendJoin[] = new int[8], pendFp[] = new int[8];
+		Call pendCall[] = new Call[8];
+		int np = 0;
+		try {
+			while (true) {
+				while (np > 0 && ip == pendJoin[np - 1] && fp == pendFp[np - 1]){
+					np--;
+					s[pendSlot[np]] = pendCall[np].join();
+					pendCall[np] = null;
+				}
+				switch (ops[p[ip]]) {
+					case M_nop:
+						ip++;
+						break;
+					case M_push:
+						s[sp++] = p[ip + 1];
+						ip += 2;
+						break;
+					case M_load:
+						s[sp++] = s[fp + p[ip + 1]];
+						ip += 2;
+						break;
+					case M_pop:
+						s[fp + p[ip + 1]] = s[--sp];
+						ip += 2;
+						break;
+					case M_add:
+						sp--;
+						s[sp - 1] = s[sp - 1] + s[sp];
+						ip++;
+						break;
+					case M_sub:
+						sp--;
+						s[sp - 1] = s[sp - 1] - s[sp];
+						ip++;
+						break;
+					case M_mul:
+						sp--;
+						s[sp - 1] = s[sp - 1] * s[sp];
+						ip++;
+						break;
+					case M_div:
+						sp--;
+						s[sp - 1] = s[sp - 1] / s[sp];
+						ip++;
+						break;
+					case M_if_cmpeq:
+						sp -= 2;
+						ip = s[sp] == s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpne:
+						sp -= 2;
+						ip = s[sp] != s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmple:
+						sp -= 2;
+						ip = s[sp] <= s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpge:
+						sp -= 2;
+						ip = s[sp] >= s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmplt:
+						sp -= 2;
+						ip = s[sp] < s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_if_cmpgt:
+						sp -= 2;
+						ip = s[sp] > s[sp + 1] ? p[ip + 1] : ip + 2;
+						break;
+					case M_goto:
+						ip = p[ip + 1];
+						break;
+					case M_jsr:
+						if(join[ip] >= 0 && depth < cutoff && ForkJoinTask.getSurplusQueuedTaskCount() < 3){
+							if(np == pendSlot.length){
+								pendSlot = Arrays.copyOf(pendSlot, np * 2);
+								pendJoin = Arrays.copyOf(pendJoin, np * 2);
+								pendFp = Arrays.copyOf(pendFp, np * 2);
+								pendCall = Arrays.copyOf(pendCall, np * 2);
+							}
+							Call c = new Call(s[sp - 1], depth);
+							c.fork();
+							pendSlot[np] = sp - 1;			// the result replaces the argument
+							pendJoin[np] = join[ip];
+							pendFp[np] = fp;
+							pendCall[np++] = c;
+							ip += 2;
+							break;
+						}
+						s[sp] = ip + 2; 		// save return address
+						s[sp + 1] = fp; 		// save fp
+						fp = sp + 2; 			// set fp
+						sp = fp + fs; 			// set sp
+						s[fp + 1] = s[fp - 3];	// copy argument
+						ip = p[ip + 1];			// goto start address
+						depth++;
+						break;
+					case M_ret:
+						s[fp - 3] = s[sp - 1];	// copy return value
+						sp = fp - 2;			// reset sp
+						fp = s[sp + 1];			// reset fp
+						ip = s[sp];				// goto return address
+						depth--;
+						break;
+					case M_pval:
+						//only in a program that is not pure, hence never forked
+						out.print(s[sp - 1]);
+						sp--;
+						ip++;
+						break;
+					case M_halt:
+						return s[0];
+					default:
+						throw new Error("illegal vm code " + p[ip]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new Error("stack overflow at " + ip);
+		}
+	}
+}
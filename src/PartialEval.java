@@ -0,0 +1,158 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Specialiser : partial evaluation of a program against a known argument.
+ * <p>
+ * A Mini program has no input but its argument, so once the argument is
+ * known every value, branch and call is known too : the program is
+ * evaluated ahead of time within an instruction budget and the residual
+ * program only replays the printed values then stores the result.
+ * <pre>
+ * push v ; pval      for each printed value
+ * push result ; pop 0 ; halt
+ * </pre>
+ * A run that does not halt within the budget or fails (division by zero,
+ * stack overflow) is not specialised : the original program is used for
+ * that argument. Residual programs are cached by argument, the least
+ * recently used one is evicted when the cache is full.
+ */
+public class PartialEval {
+	static final long DEFAULT_BUDGET = 1000000;
+	static final int DEFAULT_ENTRIES = 1000;
+	static final int RESIDUAL_STACK = 2;	// the argument and the value being printed or returned
+
+	private final MiniScript script;
+	private final long budget;
+	private final Map<Integer, MiniScript> residuals;
+
+	public static void main(String[] args) throws Error {
+		MiniScript fac = MiniScript.compile("fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+		BinCode residual = specialize(fac.getCode(), fac.getFrameSize(), 8, DEFAULT_BUDGET);
+		System.out.println("fac specialised for 8 :");
+		residual.show();
+
+		MiniScript count = MiniScript.compile("count(n) { i = 0; while (i < n) { print i; i = i + 1; } return i; }");
+		System.out.println("count specialised for 3 :");
+		specialize(count.getCode(), count.getFrameSize(), 3, DEFAULT_BUDGET).show();
+
+		MiniScript forever = MiniScript.compile("loop(n) { while (n > 0) n = n + 1; return n; }");
+		System.out.println("endless loop specialised : " + specialize(forever.getCode(), forever.getFrameSize(), 1, 10000));
+
+		PartialEval pe = new PartialEval(fac, DEFAULT_BUDGET);
+		VM vm = fac.newVM();
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		long tv = 0, tp = 0;
+		int r1 = 0, r2 = 0;
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			for(int i = 0; i < 1000000; i++)
+				r1 = vm.exec(8 + (i & 3));
+			long t1 = System.nanoTime();
+			for(int i = 0; i < 1000000; i++)
+				r2 = pe.eval(8 + (i & 3));
+			long t2 = System.nanoTime();
+			tv = t1 - t0;
+			tp = t2 - t1;
+		}
+		MiniMetrics.get().setEnabled(metrics);
+		System.out.println(String.format("1000000 x fac(8..11) : VM %d ms, specialised %d ms, results %d / %d",
+				tv / 1000000, tp / 1000000, r1, r2));
+	}
+
+	PartialEval(MiniScript script, long budget) {
+		this(script, budget, DEFAULT_ENTRIES);
+	}
+
+	/**
+	 * @param script the program to specialise
+	 * @param budget the number of instructions a specialisation may execute
+	 * @param maxEntries the number of residual programs kept
+	 */
+	PartialEval(MiniScript script, long budget, final int maxEntries) {
+		this.script = script;
+		this.budget = budget;
+		this.residuals = new LinkedHashMap<Integer, MiniScript>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, MiniScript> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Evaluate the program through the residual program of the argument,
+	 * built on the first call with this argument
+	 */
+	public int eval(int arg) throws Error {
+		return residual(arg).eval(arg);
+	}
+
+	/**
+	 * @return the program specialised for the argument, or the original
+	 * program if it could not be specialised
+	 */
+	MiniScript residual(int arg) throws Error {
+		MiniScript ms;
+		synchronized (residuals) {
+			ms = residuals.get(arg);
+		}
+		if(ms == null){
+			//two threads may specialise the same argument, they get equal programs
+			BinCode bin = specialize(script.getCode(), script.getFrameSize(), arg, budget);
+			if(bin == null)
+				ms = script;
+			else {
+				int code[] = new int[bin.getCurOffset()];
+				System.arraycopy(bin.getCode(), 0, code, 0, code.length);
+				ms = new MiniScript(code, script.getFrameSize(), RESIDUAL_STACK);
+			}
+			synchronized (residuals) {
+				residuals.put(arg, ms);
+			}
+		}
+		return ms;
+	}
+
+	/**
+	 * Evaluate a program ahead of time
+	 *
+	 * @param code the program
+	 * @param frameSize the number of local variables
+	 * @param arg the known argument
+	 * @param budget the maximum number of instructions to execute
+	 * @return the residual program, null if the run did not halt
+	 * within the budget or failed
+	 */
+	static BinCode specialize(int code[], int frameSize, int arg, long budget) {
+		IntCollector printed = new IntCollector();
+		VM vm = new VM(code, frameSize, MiniScript.DEFAULT_STACK);
+		vm.setOutput(printed);
+		vm.start(arg);
+		try {
+			if(!vm.run(budget))
+				return null;
+		} catch (Error e) {
+			return null;
+		} catch (ArithmeticException e) {
+			return null;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return null;
+		}
+
+		int count = printed.size();
+		BinCode bin = new BinCode();
+		bin.init(count * 3 + 5);
+		for(int i = 0; i < count; i++){
+			bin.instr(OpCode.M_push, printed.get(i));
+			bin.instr(OpCode.M_pval);
+		}
+		bin.instr(OpCode.M_push, vm.getResult());
+		bin.instr(OpCode.M_pop, 0);		// the result is s[0]
+		bin.instr(OpCode.M_halt);
+		return bin;
+	}
+}
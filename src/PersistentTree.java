@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Persistent (copy on write) tree for one writer and many readers.
+ * <p>
+ * The nodes are immutable {@link HashConsNode}. An update copies only the
+ * nodes on the path from the root to the modified node and shares all the
+ * other sub trees with the previous version. The current root is published
+ * through an AtomicReference: a reader takes a {@link #snapshot()} and can
+ * walk / render it without any lock while the writer goes on, it will never
+ * see a half updated tree.
+ * <p>
+ * A node is addressed by its path from the root: the list of the child
+ * indexes to follow (an empty path is the root).
+ */
+public class PersistentTree<T> {
+
+	private final AtomicReference<HashConsNode<T>> root = new AtomicReference<HashConsNode<T>>();
+
+	public static void main(String[] args) throws InterruptedException {
+		System.out.println("Test PersistentTree");
+
+		final PersistentTree<String> t = new PersistentTree<String>("=");
+		t.addChild(new int[] {}, "x");
+		t.addChild(new int[] {}, "+");
+		t.addChild(new int[] { 1 }, "2");
+		t.addChild(new int[] { 1 }, "3");
+		HashConsNode<String> v1 = t.snapshot();
+		t.setData(new int[] { 1, 1 }, "4");
+		HashConsNode<String> v2 = t.snapshot();
+
+		System.out.print(prettyPrint(v1));
+		System.out.print(prettyPrint(v2));
+		System.out.println("left sub tree shared : " + (v1.getChildAt(0) == v2.getChildAt(0)));
+
+		//one writer appends leaves, readers check that every snapshot is complete
+		final int updates = 2000;
+		final PersistentTree<Integer> shared = new PersistentTree<Integer>(0);
+		Thread readers[] = new Thread[4];
+		final boolean torn[] = new boolean[1];
+		for(int r = 0; r < readers.length; r++){
+			readers[r] = new Thread(new Runnable() {
+				public void run() {
+					int seen = 0;
+					while(seen < updates){
+						HashConsNode<Integer> snap = shared.snapshot();
+						seen = snap.getData();
+						//the root holds the number of leaves added so far
+						if(snap.getChildCount() != seen)
+							torn[0] = true;
+					}
+				}
+			});
+			readers[r].start();
+		}
+		long t0 = System.nanoTime();
+		for(int i = 1; i <= updates; i++){
+			final int n = i;
+			shared.update(new UnaryOperator<HashConsNode<Integer>>() {
+				public HashConsNode<Integer> apply(HashConsNode<Integer> old) {
+					return setData(addChild(old, new int[] {}, n), new int[] {}, n);
+				}
+			});
+		}
+		for(Thread th : readers)
+			th.join();
+		System.out.println(String.format("%d updates in %d ms, torn reads : %b",
+				updates, (System.nanoTime() - t0) / 1000000, torn[0]));
+	}
+
+	PersistentTree(){
+	}
+
+	PersistentTree(T data){
+		root.set(new HashConsNode<T>(data));
+	}
+
+	/**
+	 * Build a persistent copy of a mutable {@link Tree}
+	 */
+	static <T> PersistentTree<T> of(Tree<T> tree) {
+		PersistentTree<T> pt = new PersistentTree<T>();
+		if(!tree.isEmpty())
+			pt.root.set(copy(tree.getRoot()));
+		return pt;
+	}
+
+	private static <T> HashConsNode<T> copy(TreeNode<T> tn) {
+		HashConsNode<T> kids[] = HashConsNode.newArray(tn.getChildren().size());
+		for(int i = 0; i < kids.length; i++)
+			kids[i] = copy(tn.getChildAt(i));
+		return new HashConsNode<T>(tn.getData(), kids);
+	}
+
+	/**
+	 * Get the current version of the tree. The returned nodes never change.
+	 * @return the current root, null if the tree is empty
+	 */
+	public HashConsNode<T> snapshot() {
+		return root.get();
+	}
+
+	public boolean isEmpty() {
+		return root.get() == null;
+	}
+
+	public long nodesCount() {
+		HashConsNode<T> r = root.get();
+		return r == null ? 0 : r.getNumberOfNodes();
+	}
+
+	/**
+	 * Replace the whole tree
+	 */
+	public void setRoot(HashConsNode<T> newRoot) {
+		root.set(newRoot);
+	}
+
+	/**
+	 * Publish a new version only if the tree was not changed since
+	 * the expected version was read
+	 */
+	public boolean compareAndSet(HashConsNode<T> expected, HashConsNode<T> newRoot) {
+		return root.compareAndSet(expected, newRoot);
+	}
+
+	/**
+	 * Apply a function to the current version and publish its result,
+	 * retrying if another writer got in between
+	 * @return the published version
+	 */
+	public HashConsNode<T> update(UnaryOperator<HashConsNode<T>> f) {
+		HashConsNode<T> prev, next;
+		do {
+			prev = root.get();
+			next = f.apply(prev);
+		} while(!root.compareAndSet(prev, next));
+		return next;
+	}
+
+	/**
+	 * append a child to the node at path
+	 * @return the published version
+	 */
+	public HashConsNode<T> addChild(final int path[], final T data) {
+		return update(new UnaryOperator<HashConsNode<T>>() {
+			public HashConsNode<T> apply(HashConsNode<T> r) {
+				return addChild(r, path, data);
+			}
+		});
+	}
+
+	/**
+	 * change the value of the node at path, or create the root of an
+	 * empty tree with an empty path
+	 * @return the published version
+	 */
+	public HashConsNode<T> setData(final int path[], final T data) {
+		return update(new UnaryOperator<HashConsNode<T>>() {
+			public HashConsNode<T> apply(HashConsNode<T> r) {
+				return setData(r, path, data);
+			}
+		});
+	}
+
+	/**
+	 * remove a child of the node at path
+	 * @return the published version
+	 */
+	public HashConsNode<T> removeChildAt(final int path[], final int index) {
+		return update(new UnaryOperator<HashConsNode<T>>() {
+			public HashConsNode<T> apply(HashConsNode<T> r) {
+				return removeChildAt(r, path, index);
+			}
+		});
+	}
+
+	/**
+	 * Get the node at path in a version
+	 * @throws IllegalStateException if the version is empty
+	 */
+	static <T> HashConsNode<T> nodeAt(HashConsNode<T> r, int path[]) {
+		if(r == null)
+			throw new IllegalStateException("the tree is empty");
+		HashConsNode<T> n = r;
+		for(int idx : path)
+			n = n.getChildAt(idx);
+		return n;
+	}
+
+	/**
+	 * @return a new version where the node at path got a new last child
+	 */
+	static <T> HashConsNode<T> addChild(HashConsNode<T> r, int path[], T data) {
+		HashConsNode<T> n = nodeAt(r, path);
+		HashConsNode<T> kids[] = HashConsNode.newArray(n.getChildCount() + 1);
+		for(int i = 0; i < kids.length - 1; i++)
+			kids[i] = n.getChildAt(i);
+		kids[kids.length - 1] = new HashConsNode<T>(data);
+		return replace(r, path, 0, new HashConsNode<T>(n.getData(), kids));
+	}
+
+	/**
+	 * @return a new version where the node at path has a new value,
+	 * setting the root of an empty version creates it
+	 */
+	static <T> HashConsNode<T> setData(HashConsNode<T> r, int path[], T data) {
+		if(r == null && path.length == 0)
+			return new HashConsNode<T>(data);
+		HashConsNode<T> n = nodeAt(r, path);
+		return replace(r, path, 0, new HashConsNode<T>(data, children(n)));
+	}
+
+	/**
+	 * @return a new version without the given child of the node at path
+	 */
+	static <T> HashConsNode<T> removeChildAt(HashConsNode<T> r, int path[], int index) {
+		HashConsNode<T> n = nodeAt(r, path);
+		if(index < 0 || index >= n.getChildCount())
+			throw new IndexOutOfBoundsException("child " + index);
+		HashConsNode<T> kids[] = HashConsNode.newArray(n.getChildCount() - 1);
+		for(int i = 0, j = 0; i < n.getChildCount(); i++)
+			if(i != index)
+				kids[j++] = n.getChildAt(i);
+		return replace(r, path, 0, new HashConsNode<T>(n.getData(), kids));
+	}
+
+	/**
+	 * Path copying: rebuild the nodes from n down to path[depth..] where
+	 * the sub tree is replaced by sub, all the siblings are shared
+	 */
+	private static <T> HashConsNode<T> replace(HashConsNode<T> n, int path[], int depth, HashConsNode<T> sub) {
+		if(depth == path.length)
+			return sub;
+		HashConsNode<T> kids[] = children(n);
+		kids[path[depth]] = replace(kids[path[depth]], path, depth + 1, sub);
+		return new HashConsNode<T>(n.getData(), kids);
+	}
+
+	private static <T> HashConsNode<T>[] children(HashConsNode<T> n) {
+		HashConsNode<T> kids[] = HashConsNode.newArray(n.getChildCount());
+		for(int i = 0; i < kids.length; i++)
+			kids[i] = n.getChildAt(i);
+		return kids;
+	}
+
+	/**
+	 * Walk a version of the tree
+	 */
+	static <T> List<HashConsNode<T>> getTraversalList(HashConsNode<T> r, Tree.OrderTraversal order) {
+		List<HashConsNode<T>> traversal = new ArrayList<HashConsNode<T>>();
+		if(r != null)
+			walk(r, order, traversal);
+		return traversal;
+	}
+
+	private static <T> void walk(HashConsNode<T> n, Tree.OrderTraversal order, List<HashConsNode<T>> traversal) {
+		if(order == Tree.OrderTraversal.PREFIX)
+			traversal.add(n);
+		for(int i = 0; i < n.getChildCount(); i++)
+			walk(n.getChildAt(i), order, traversal);
+		if(order == Tree.OrderTraversal.POSTFIX)
+			traversal.add(n);
+	}
+
+	/**
+	 * Walk the current version
+	 */
+	List<HashConsNode<T>> getTraversalList(Tree.OrderTraversal order) {
+		return getTraversalList(snapshot(), order);
+	}
+
+	/**
+	 * Render a version of the tree, same output as Tree
+	 */
+	static <T> String prettyPrint(HashConsNode<T> r) {
+		if(r == null)
+			return "";
+		StringBuilder sb = new StringBuilder();
+		for(String s : r.toTreeNode().toPrettifiedStrings()){
+			sb.append(s);
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+
+/**
+ * Profile guided block reordering.
+ * <p>
+ * The program is run on training arguments with a {@link BranchProfile},
+ * then its blocks are laid out along the hot edges by {@link MiniOpt.Cfg#layout}
+ * and the code is generated again : the hot path falls through, the
+ * conditions are inverted as needed and all the jumps are patched.
+ * <pre>
+ * ProfileLayout [&lt;script.mini&gt; training_arg...]
+ * </pre>
+ */
+public class ProfileLayout {
+	static final String DEMO =
+			"demo(n) {\n" +
+			"  s = 0; i = 0;\n" +
+			"  while (i < n) {\n" +
+			"    if ((i / 8) * 8 == i) s = s + i; else s = s - 1;\n" +
+			"    i = i + 1;\n" +
+			"  }\n" +
+			"  return s;\n" +
+			"}\n";
+
+	public static void main(String[] args) throws Error {
+		MiniScript ms;
+		int train[] = { 1000 };
+		if(args.length > 0){
+			try {
+				ms = MiniScript.compile(new FileReader(args[0]));
+			} catch (FileNotFoundException e) {
+				throw new Error("file not found " + args[0]);
+			}
+			if(args.length > 1){
+				train = new int[args.length - 1];
+				for(int i = 1; i < args.length; i++)
+					train[i - 1] = Integer.parseInt(args[i]);
+			}
+		} else {
+			System.out.print(DEMO);
+			ms = MiniScript.compile(DEMO);
+		}
+		BranchProfile profile = profile(ms, train);
+		MiniOpt.Cfg cfg = MiniOpt.Cfg.build(ms.getCode(), ms.getFrameSize());
+		System.out.println(cfg.layout(profile) + " blocks moved");
+		BinCode bin = cfg.lower();
+		bin.show();
+		MiniScript laid = toScript(bin, ms.getFrameSize());
+		BranchProfile after = profile(laid, train);
+		System.out.println(String.format("before : %d instructions, %d taken jumps, result %d",
+				profile.dispatches, profile.getTakenJumps(), ms.eval(train[0])));
+		System.out.println(String.format("after  : %d instructions, %d taken jumps, result %d",
+				after.dispatches, after.getTakenJumps(), laid.eval(train[0])));
+	}
+
+	/**
+	 * Run a program on each training argument, counting the branches
+	 */
+	static BranchProfile profile(MiniScript ms, int... args) throws Error {
+		int code[] = ms.getCode();
+		BranchProfile profile = new BranchProfile(code.length);
+		VM vm = new VM(code, ms.getFrameSize(), MiniScript.DEFAULT_STACK);
+		vm.setOutput(NullSink.INSTANCE);
+		vm.setProfile(profile);
+		for(int arg : args){
+			vm.exec(arg);
+			profile.dispatches += vm.getExecutedCount();
+		}
+		return profile;
+	}
+
+	/**
+	 * Reorder the blocks of a program for the given training arguments
+	 */
+	static MiniScript reorder(MiniScript ms, int... trainingArgs) throws Error {
+		MiniOpt.Cfg cfg = MiniOpt.Cfg.build(ms.getCode(), ms.getFrameSize());
+		cfg.layout(profile(ms, trainingArgs));
+		return toScript(cfg.lower(), ms.getFrameSize());
+	}
+
+	private static MiniScript toScript(BinCode bin, int frameSize) {
+		int code[] = new int[bin.getCurOffset()];
+		System.arraycopy(bin.getCode(), 0, code, 0, code.length);
+		return new MiniScript(code, frameSize, MiniScript.DEFAULT_STACK);
+	}
+}
@@ -0,0 +1,471 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Register based virtual machine : a second target for Mini programs.
+ * <p>
+ * Instructions are three-address operations on the slots of the current
+ * frame, e.g. <code>a = b + c</code> is the single instruction
+ * <code>add a b c</code> instead of load / load / add / pop. The code is
+ * produced from the stack code by {@link RegCode#translate}.
+ * <p>
+ * An operand &gt;= 0 is a frame slot (fp + operand), a negative operand
+ * o is the constant k[-o - 1] of the constant table. A frame holds the
+ * local variables (the SymTab indexes, the parameter is slot 1) followed
+ * by the temporaries of the code generator, and is preceded by a 3 slot
+ * header : the address where the result goes, the return address and the
+ * caller fp.
+ */
+public class RegVM {
+	private static final RegOp ops[] = new RegOp[RegOp.values().length];
+
+	static {
+		for(RegOp op : RegOp.values())
+			ops[op.getValue()] = op;
+	}
+
+	private final int c[]; // program code
+	private final int k[]; // constants
+	private final int fs; // frame size, temporaries included
+	private final int s[]; // stack
+	private long executed; // instructions of the last run
+	private OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+
+	public static void main(String[] args) throws Error {
+		String loop = "sum(n) { s = 0; i = 0; while (i < n) { s = s + i * i - i / 3; i = i + 1; } return s; }";
+		String fac = "fac(n) { if (n == 0) return 1; else return n * fac(n-1); }";
+		RegCode.translate(MiniScript.compile(fac)).show();
+		bench("arithmetic loop", loop, 1000000, 20);
+		bench("fac(12)", fac, 12, 200000);
+	}
+
+	private static void bench(String name, String source, int arg, int repeat) throws Error {
+		MiniScript ms = MiniScript.compile(source);
+		VM vm = ms.newVM();
+		RegVM rvm = new RegVM(RegCode.translate(ms), MiniVM.stack_max);
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		long tv = 0, tr = 0;
+		int r1 = 0, r2 = 0;
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			for(int i = 0; i < repeat; i++)
+				r1 = vm.exec(arg);
+			long t1 = System.nanoTime();
+			for(int i = 0; i < repeat; i++)
+				r2 = rvm.exec(arg);
+			long t2 = System.nanoTime();
+			tv = t1 - t0;
+			tr = t2 - t1;
+		}
+		MiniMetrics.get().setEnabled(metrics);
+		System.out.println(String.format("%-16s: VM %5d ms %9d instr, RegVM %5d ms %9d instr (x%.2f), results %d / %d",
+				name, tv / 1000000, vm.getExecutedCount(), tr / 1000000, rvm.getExecutedCount(),
+				(double) tv / tr, r1, r2));
+	}
+
+	RegVM(RegCode code, int stack_max) {
+		c = code.getCode();
+		k = code.getConstants();
+		fs = code.getFrameSize();
+		s = new int[stack_max];
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out) {
+		this.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * Run the function
+	 *
+	 * @param arg the function argument
+	 * @return the returned value
+	 * @throws Error
+	 */
+	int exec(int arg) throws Error {
+		final int c[] = this.c, k[] = this.k, s[] = this.s;
+		final int fs = this.fs;
+		int ip = RegCode.ENTRY, fp = 3;
+		long count = 0;
+		int a, b;
+		s[0] = 0;				// result address
+		s[1] = 0;				// return to halt
+		s[2] = 0;
+		try {
+			s[fp + 1] = arg;
+			while (true) {
+				count++;
+				switch (ops[c[ip]]) {
+					case R_nop:
+						ip++;
+						break;
+					case R_move:
+						a = c[ip + 2];
+						s[fp + c[ip + 1]] = a >= 0 ? s[fp + a] : k[~a];
+						ip += 3;
+						break;
+					case R_add:
+						a = c[ip + 2];
+						b = c[ip + 3];
+						s[fp + c[ip + 1]] = (a >= 0 ? s[fp + a] : k[~a]) + (b >= 0 ? s[fp + b] : k[~b]);
+						ip += 4;
+						break;
+					case R_sub:
+						a = c[ip + 2];
+						b = c[ip + 3];
+						s[fp + c[ip + 1]] = (a >= 0 ? s[fp + a] : k[~a]) - (b >= 0 ? s[fp + b] : k[~b]);
+						ip += 4;
+						break;
+					case R_mul:
+						a = c[ip + 2];
+						b = c[ip + 3];
+						s[fp + c[ip + 1]] = (a >= 0 ? s[fp + a] : k[~a]) * (b >= 0 ? s[fp + b] : k[~b]);
+						ip += 4;
+						break;
+					case R_div:
+						a = c[ip + 2];
+						b = c[ip + 3];
+						s[fp + c[ip + 1]] = (a >= 0 ? s[fp + a] : k[~a]) / (b >= 0 ? s[fp + b] : k[~b]);
+						ip += 4;
+						break;
+					case R_if_eq:
+						a = c[ip + 1];
+						b = c[ip + 2];
+						ip = (a >= 0 ? s[fp + a] : k[~a]) == (b >= 0 ? s[fp + b] : k[~b]) ? c[ip + 3] : ip + 4;
+						break;
+					case R_if_ne:
+						a = c[ip + 1];
+						b = c[ip + 2];
+						ip = (a >= 0 ? s[fp + a] : k[~a]) != (b >= 0 ? s[fp + b] : k[~b]) ? c[ip + 3] : ip + 4;
+						break;
+					case R_if_le:
+						a = c[ip + 1];
+						b = c[ip + 2];
+						ip = (a >= 0 ? s[fp + a] : k[~a]) <= (b >= 0 ? s[fp + b] : k[~b]) ? c[ip + 3] : ip + 4;
+						break;
+					case R_if_ge:
+						a = c[ip + 1];
+						b = c[ip + 2];
+						ip = (a >= 0 ? s[fp + a] : k[~a]) >= (b >= 0 ? s[fp + b] : k[~b]) ? c[ip + 3] : ip + 4;
+						break;
+					case R_if_lt:
+						a = c[ip + 1];
+						b = c[ip + 2];
+						ip = (a >= 0 ? s[fp + a] : k[~a]) < (b >= 0 ? s[fp + b] : k[~b]) ? c[ip + 3] : ip + 4;
+						break;
+					case R_if_gt:
+						a = c[ip + 1];
+						b = c[ip + 2];
+						ip = (a >= 0 ? s[fp + a] : k[~a]) > (b >= 0 ? s[fp + b] : k[~b]) ? c[ip + 3] : ip + 4;
+						break;
+					case R_goto:
+						ip = c[ip + 1];
+						break;
+					case R_call:
+						a = c[ip + 2];
+						a = a >= 0 ? s[fp + a] : k[~a];
+						b = fp + fs + 3;		// new fp
+						s[b - 3] = fp + c[ip + 1];	// result address
+						s[b - 2] = ip + 4;		// return address
+						s[b - 1] = fp;			// save fp
+						s[b + fs - 1] = 0;		// check the whole frame fits
+						s[b + 1] = a;			// argument
+						fp = b;
+						ip = c[ip + 3];
+						break;
+					case R_ret:
+						a = c[ip + 1];
+						s[s[fp - 3]] = a >= 0 ? s[fp + a] : k[~a];
+						ip = s[fp - 2];
+						fp = s[fp - 1];
+						break;
+					case R_print:
+						a = c[ip + 1];
+						out.print(a >= 0 ? s[fp + a] : k[~a]);
+						ip += 2;
+						break;
+					case R_halt:
+						executed = count;
+						return s[0];
+					default:
+						throw new Error("illegal vm code " + c[ip]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			executed = count;
+			throw new Error("stack overflow at " + ip);
+		}
+	}
+
+	/**
+	 * @return the number of instructions executed by the last run
+	 */
+	long getExecutedCount() {
+		return executed;
+	}
+}
+
+/**
+ * Register VM instruction set, operands follow the opcode
+ */
+enum RegOp
+{
+	R_nop		(0, 0, "do nothing"),
+	R_move		(1, 2, "d = a"),
+	R_add		(2, 3, "d = a + b"),
+	R_sub		(3, 3, "d = a - b"),
+	R_mul		(4, 3, "d = a * b"),
+	R_div		(5, 3, "d = a / b"),
+	R_if_eq		(6, 3, "jump if a == b"),
+	R_if_ne		(7, 3, "jump if a != b"),
+	R_if_le		(8, 3, "jump if a <= b"),
+	R_if_ge		(9, 3, "jump if a >= b"),
+	R_goto		(10, 1, "goto"),
+	R_call		(11, 3, "d = call(a)"),
+	R_ret		(12, 1, "return a"),
+	R_halt		(13, 0, "stop execution"),
+	R_print		(14, 1, "print a"),
+	R_if_lt		(15, 3, "jump if a < b"),
+	R_if_gt		(16, 3, "jump if a > b");
+
+	RegOp(int val, int args, String desc){
+		this.value = val;
+		this.args = args;
+		this.desc = desc;
+	}
+
+	public int getValue(){
+		return value;
+	}
+
+	public int getArgCount(){
+		return args;
+	}
+
+	public String getDesc(){
+		return desc;
+	}
+
+	private final int value;
+	private final int args;
+	private final String desc;
+}
+
+/**
+ * Register code of a Mini program and its generator
+ * <p>
+ * The translation runs over the stack code with a symbolic stack : a
+ * push or load only pushes its operand (constant or variable), an
+ * operator pops its operands and emits one instruction into the temporary
+ * of its stack depth. A store of a value computed by the previous
+ * instruction just changes the destination of that instruction. Jump
+ * targets are statement boundaries, where the stack is empty.
+ */
+class RegCode {
+	static final int ENTRY = 1; // start address of the function, a halt is at 0
+
+	private int code[];
+	private int pc;
+	private final int constants[];
+	private final int frameSize;
+
+	private RegCode(int code[], int pc, int constants[], int frameSize) {
+		this.code = code;
+		this.pc = pc;
+		this.constants = constants;
+		this.frameSize = frameSize;
+	}
+
+	int[] getCode() {
+		return code;
+	}
+
+	int[] getConstants() {
+		return constants;
+	}
+
+	/**
+	 * @return the number of slots of a frame : variables then temporaries
+	 */
+	int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * @return true for the conditional jumps of the stack code
+	 */
+	private static boolean isBranch(OpCode op) {
+		return (op.getValue() >= OpCode.M_if_cmpeq.getValue() && op.getValue() <= OpCode.M_if_cmpge.getValue())
+				|| op == OpCode.M_if_cmplt || op == OpCode.M_if_cmpgt;
+	}
+
+	static RegCode translate(MiniScript ms) throws Error {
+		return translate(ms.getCode(), ms.getFrameSize());
+	}
+
+	/**
+	 * Generate the register code of a compiled program
+	 *
+	 * @param p the stack code
+	 * @param vars the number of local variables
+	 * @return the register code
+	 * @throws Error if the stack code is not as generated by the Parser
+	 */
+	static RegCode translate(int p[], int vars) throws Error {
+		final int start = 3;			// after jsr 3; halt
+		boolean label[] = new boolean[p.length + 1];
+		for(int i = start; i < p.length; i += OpCode.fromInt(p[i]).hasArg() ? 2 : 1){
+			OpCode op = OpCode.fromInt(p[i]);
+			if(op == null || (op.hasArg() && i + 1 >= p.length))
+				throw new Error("illegal vm code at " + i);
+			if(op == OpCode.M_goto || op == OpCode.M_jsr || isBranch(op))
+				label[p[i + 1]] = true;
+		}
+
+		int code[] = new int[p.length * 2 + 1];
+		int pc = 0;
+		int addr[] = new int[p.length + 1];		// stack address -> register address
+		List<Integer> fixups = new ArrayList<Integer>();
+		Map<Integer, Integer> pool = new HashMap<Integer, Integer>();
+		List<Integer> consts = new ArrayList<Integer>();
+		int stack[] = new int[p.length];		// symbolic stack of operands
+		int depth = 0, maxDepth = 0;
+		int lastDst = -1;						// dst operand of the previous instruction
+
+		code[pc++] = RegOp.R_halt.getValue();
+		for(int i = start; i < p.length; ){
+			if(label[i] && depth != 0)
+				throw new Error("jump into an expression at " + i);
+			addr[i] = pc;
+			OpCode op = OpCode.fromInt(p[i]);
+			int arg = op.hasArg() ? p[i + 1] : 0;
+			int mark = pc;
+			switch (op) {
+				case M_nop:
+					break;
+				case M_push:
+					Integer ix = pool.get(arg);
+					if(ix == null){
+						ix = consts.size();
+						consts.add(arg);
+						pool.put(arg, ix);
+					}
+					stack[depth++] = ~ix;
+					break;
+				case M_load:
+					stack[depth++] = arg;
+					break;
+				case M_pop:
+					int v = stack[--depth];
+					for(int d = 0; d < depth; d++)
+						if(stack[d] == arg){
+							//keep the old value of the variable for the pending operands
+							pc = emit(code, pc, RegOp.R_move, vars + d, arg);
+							stack[d] = vars + d;
+						}
+					if(pc == mark && lastDst >= 0 && v >= vars && code[lastDst] == v)
+						code[lastDst] = arg;
+					else
+						pc = emit(code, pc, RegOp.R_move, arg, v);
+					break;
+				case M_add:
+				case M_sub:
+				case M_mul:
+				case M_div:
+					depth -= 2;
+					RegOp rop = op == OpCode.M_add ? RegOp.R_add : op == OpCode.M_sub ? RegOp.R_sub
+							: op == OpCode.M_mul ? RegOp.R_mul : RegOp.R_div;
+					pc = emit(code, pc, rop, vars + depth, stack[depth], stack[depth + 1]);
+					stack[depth] = vars + depth;
+					depth++;
+					break;
+				case M_if_cmpeq:
+				case M_if_cmpne:
+				case M_if_cmple:
+				case M_if_cmpge:
+				case M_if_cmplt:
+				case M_if_cmpgt:
+					depth -= 2;
+					RegOp cop = op == OpCode.M_if_cmpeq ? RegOp.R_if_eq : op == OpCode.M_if_cmpne ? RegOp.R_if_ne
+							: op == OpCode.M_if_cmple ? RegOp.R_if_le : op == OpCode.M_if_cmpge ? RegOp.R_if_ge
+							: op == OpCode.M_if_cmplt ? RegOp.R_if_lt : RegOp.R_if_gt;
+					pc = emit(code, pc, cop, stack[depth], stack[depth + 1], arg);
+					fixups.add(pc - 1);
+					break;
+				case M_goto:
+					pc = emit(code, pc, RegOp.R_goto, arg);
+					fixups.add(pc - 1);
+					break;
+				case M_jsr:
+					depth--;
+					pc = emit(code, pc, RegOp.R_call, vars + depth, stack[depth], arg);
+					fixups.add(pc - 1);
+					stack[depth] = vars + depth;
+					depth++;
+					break;
+				case M_ret:
+					pc = emit(code, pc, RegOp.R_ret, stack[--depth]);
+					break;
+				case M_pval:
+					pc = emit(code, pc, RegOp.R_print, stack[--depth]);
+					break;
+				case M_halt:
+					pc = emit(code, pc, RegOp.R_halt);
+					break;
+				default:
+					throw new Error("illegal vm code " + p[i]);
+			}
+			if(depth > maxDepth)
+				maxDepth = depth;
+			//only arithmetic and calls leave a temporary that a store can take over
+			lastDst = op == OpCode.M_jsr || (op.getValue() >= OpCode.M_add.getValue()
+					&& op.getValue() <= OpCode.M_div.getValue()) ? mark + 1 : -1;
+			i += op.hasArg() ? 2 : 1;
+		}
+		addr[p.length] = pc;
+		for(int f : fixups)
+			code[f] = addr[code[f]];
+
+		int k[] = new int[consts.size()];
+		for(int i = 0; i < k.length; i++)
+			k[i] = consts.get(i);
+		int c[] = new int[pc];
+		System.arraycopy(code, 0, c, 0, pc);
+		return new RegCode(c, pc, k, vars + maxDepth);
+	}
+
+	private static int emit(int code[], int pc, RegOp op, int... operands) {
+		code[pc++] = op.getValue();
+		for(int o : operands)
+			code[pc++] = o;
+		return pc;
+	}
+
+	/**
+	 * Dump the register code
+	 */
+	public void show() {
+		System.out.print("RegCode:\n");
+		for (int i = 0; i < pc; ) {
+			RegOp op = RegOp.values()[code[i]];
+			StringBuilder sb = new StringBuilder();
+			for(int j = 1; j <= op.getArgCount(); j++){
+				int o = code[i + j];
+				boolean target = j == op.getArgCount() && (op == RegOp.R_goto || op == RegOp.R_call
+						|| (op.getValue() >= RegOp.R_if_eq.getValue() && op.getValue() <= RegOp.R_if_ge.getValue())
+						|| op == RegOp.R_if_lt || op == RegOp.R_if_gt);
+				sb.append(target ? String.format(" @%04x", o) : o >= 0 ? " r" + o : " #" + constants[~o]);
+			}
+			System.out.println(String.format("%04x  %-8s%-22s%s", i, op.toString(), sb, op.getDesc()));
+			i += 1 + op.getArgCount();
+		}
+		System.out.println();
+	}
+}
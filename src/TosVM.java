@@ -0,0 +1,206 @@
+import java.io.PrintWriter;
+
+/**
+ * Interpreter variant with the VM registers in local variables.
+ * <p>
+ * Runs the same code as {@link VM}, but ip, sp, fp and the top of the
+ * stack (TOS caching) are kept in locals of the interpreter loop, so that
+ * the JIT can hold them in machine registers instead of storing the
+ * fields back after every instruction. The stack in memory holds the
+ * elements below the top one ; the fields are only written back when the
+ * VM prints a value and when it stops.
+ * <p>
+ * The opcodes are decoded through an array instead of OpCode.fromInt()
+ * which does a map lookup on a boxed Integer.
+ */
+public class TosVM {
+	private static final OpCode ops[] = new OpCode[OpCode.values().length];
+
+	static {
+		for(OpCode op : OpCode.values())
+			ops[op.getValue()] = op;
+	}
+
+	private final int p[]; // program code
+	private final int s[]; // stack
+	private final int fs; // frame size
+	private int ip, sp, fp; // only up to date when the VM is stopped
+	private OutputSink out = new WriterSink(new PrintWriter(System.out, true));
+
+	public static void main(String[] args) throws Error {
+		String loop = "sum(n) { s = 0; i = 0; while (i < n) { s = s + i * i - i / 3; i = i + 1; } return s; }";
+		String fac = "fac(n) { if (n == 0) return 1; else return n * fac(n-1); }";
+		bench("arithmetic loop", loop, 1000000, 20);
+		bench("fac(12)", fac, 12, 200000);
+	}
+
+	private static void bench(String name, String source, int arg, int repeat) throws Error {
+		MiniScript ms = MiniScript.compile(source);
+		VM vm = ms.newVM();
+		TosVM tvm = new TosVM(ms.getCode(), ms.getFrameSize(), MiniVM.stack_max);
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		long tv = 0, tt = 0;
+		int r1 = 0, r2 = 0;
+		for(int round = 0; round < 5; round++){
+			long t0 = System.nanoTime();
+			for(int i = 0; i < repeat; i++)
+				r1 = vm.exec(arg);
+			long t1 = System.nanoTime();
+			for(int i = 0; i < repeat; i++)
+				r2 = tvm.exec(arg);
+			long t2 = System.nanoTime();
+			tv = t1 - t0;
+			tt = t2 - t1;
+		}
+		MiniMetrics.get().setEnabled(metrics);
+		System.out.println(String.format("%-16s: VM %5d ms, TosVM %5d ms (x%.2f), results %d / %d",
+				name, tv / 1000000, tt / 1000000, (double) tv / tt, r1, r2));
+	}
+
+	TosVM(int code[], int frame_size, int stack_max) {
+		p = code;
+		fs = frame_size;
+		s = new int[stack_max];
+	}
+
+	/**
+	 * Set the destination of the print statement, the caller flushes it
+	 * @param out the sink, null to discard the output
+	 */
+	public void setOutput(OutputSink out) {
+		this.out = out == null ? NullSink.INSTANCE : out;
+	}
+
+	/**
+	 * Run the program from the start
+	 *
+	 * @param arg the function argument
+	 * @return the value left at the bottom of the stack
+	 * @throws Error
+	 */
+	int exec(int arg) throws Error {
+		int ip = 0, sp = 1, fp = 0;
+		int tos = arg;			// logical s[sp - 1]
+		final int p[] = this.p;
+		final int s[] = this.s;
+		try {
+			while (true) {
+				switch (ops[p[ip]]) {
+					case M_nop:
+						ip++;
+						break;
+					case M_push:
+						s[sp - 1] = tos;
+						tos = p[ip + 1];
+						sp++;
+						ip += 2;
+						break;
+					case M_load:
+						s[sp - 1] = tos;	// spill first : the variable may be the top slot
+						tos = s[fp + p[ip + 1]];
+						sp++;
+						ip += 2;
+						break;
+					case M_pop:
+						s[fp + p[ip + 1]] = tos;	// store first : the variable may be the new top
+						tos = s[sp - 2];
+						sp--;
+						ip += 2;
+						break;
+					case M_add:
+						tos = s[sp - 2] + tos;
+						sp--;
+						ip++;
+						break;
+					case M_sub:
+						tos = s[sp - 2] - tos;
+						sp--;
+						ip++;
+						break;
+					case M_mul:
+						tos = s[sp - 2] * tos;
+						sp--;
+						ip++;
+						break;
+					case M_div:
+						tos = s[sp - 2] / tos;
+						sp--;
+						ip++;
+						break;
+					case M_if_cmpeq:
+						ip = s[sp - 2] == tos ? p[ip + 1] : ip + 2;
+						sp -= 2;
+						tos = s[sp - 1];
+						break;
+					case M_if_cmpne:
+						ip = s[sp - 2] != tos ? p[ip + 1] : ip + 2;
+						sp -= 2;
+						tos = s[sp - 1];
+						break;
+					case M_if_cmple:
+						ip = s[sp - 2] <= tos ? p[ip + 1] : ip + 2;
+						sp -= 2;
+						tos = s[sp - 1];
+						break;
+					case M_if_cmpge:
+						ip = s[sp - 2] >= tos ? p[ip + 1] : ip + 2;
+						sp -= 2;
+						tos = s[sp - 1];
+						break;
+					case M_if_cmplt:
+						ip = s[sp - 2] < tos ? p[ip + 1] : ip + 2;
+						sp -= 2;
+						tos = s[sp - 1];
+						break;
+					case M_if_cmpgt:
+						ip = s[sp - 2] > tos ? p[ip + 1] : ip + 2;
+						sp -= 2;
+						tos = s[sp - 1];
+						break;
+					case M_goto:
+						ip = p[ip + 1];
+						break;
+					case M_jsr:
+						s[sp - 1] = tos;		// argument
+						s[sp] = ip + 2; 		// save return address
+						s[sp + 1] = fp; 		// save fp
+						fp = sp + 2; 			// set fp
+						sp = fp + fs; 			// set sp
+						s[fp + 1] = tos;		// copy argument
+						tos = s[sp - 1];
+						ip = p[ip + 1];			// goto start address
+						break;
+					case M_ret:
+						s[fp - 3] = tos;		// copy return value
+						sp = fp - 2;			// reset sp
+						fp = s[sp + 1];			// reset fp
+						ip = s[sp];				// goto return address
+						break;
+					case M_pval:
+						this.ip = ip;
+						this.sp = sp;
+						this.fp = fp;
+						out.print(tos);
+						sp--;
+						tos = s[sp - 1];
+						ip++;
+						break;
+					case M_halt:
+						s[sp - 1] = tos;
+						this.ip = ip;
+						this.sp = sp;
+						this.fp = fp;
+						return s[0];
+					default:
+						throw new Error("illegal vm code " + p[ip]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			this.ip = ip;
+			this.sp = sp;
+			this.fp = fp;
+			throw new Error("stack overflow at " + ip);
+		}
+	}
+}
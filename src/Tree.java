@@ -1,10 +1,12 @@
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 
 public class Tree<T> {
 
 	private TreeNode<T> root;
+	private TreeIndex<T> index;
 	
 	public static void main(String[] args) {
 		
@@ -68,6 +70,17 @@ public class Tree<T> {
 		for(TreeNode<String> tn : tree.getTraversalList(OrderTraversal.POSTFIX))
 			System.out.print(tn.toString() + " ");
 		System.out.println();
+		
+		tree.enableIndex();
+		TreeNode<String> three = tree.findNode("3");
+		TreeNode<String> two = tree.findNode("2");
+		System.out.print("Path to 3    : ");
+		for(TreeNode<String> tn : tree.getPathFromRoot(three))
+			System.out.print(tn.toString() + " ");
+		System.out.println();
+		System.out.println("LCA of 2, 3  : " + tree.lowestCommonAncestor(two, three));
+		three.setData("5");
+		System.out.println("3 after set  : " + tree.findNode("3") + ", 5 : " + tree.findNode("5"));
 	}
 	
 	public boolean isEmpty(){
@@ -93,7 +106,7 @@ public class Tree<T> {
 	}
 	
 	Tree(TreeNode<T> tn){
-		root = tn;
+		setRoot(tn);
 	}
 	
 	Tree(T data){
@@ -105,7 +118,100 @@ public class Tree<T> {
 	}
 	
 	public void setRoot(TreeNode<T> tn){
+		if(root != null)
+			root.setLabelIndex(null);
 		root = tn;
+		if(root != null)
+			root.setLabelIndex(index);
+	}
+	
+	/**
+	 * Build an index of the nodes by their data, it is then maintained
+	 * by the TreeNode mutators
+	 */
+	public void enableIndex(){
+		if(index != null)
+			return;
+		index = new TreeIndex<T>();
+		if(root != null)
+			root.setLabelIndex(index);
+	}
+	
+	public void disableIndex(){
+		if(root != null)
+			root.setLabelIndex(null);
+		index = null;
+	}
+	
+	public boolean isIndexed(){
+		return index != null;
+	}
+	
+	/**
+	 * Find a node by its data, in O(1) if the tree is indexed
+	 * else with a prefix walk
+	 * @param data the value to look for
+	 * @return a node holding data or null
+	 */
+	public TreeNode<T> findNode(T data){
+		if(index != null)
+			return index.find(data);
+		if(root != null)
+			for(TreeNode<T> tn : getTraversalList(OrderTraversal.PREFIX))
+				if(data == null ? tn.getData() == null : data.equals(tn.getData()))
+					return tn;
+		return null;
+	}
+	
+	/**
+	 * Find all the nodes holding data
+	 */
+	public List<TreeNode<T>> findAll(T data){
+		if(index != null)
+			return index.findAll(data);
+		List<TreeNode<T>> found = new ArrayList<TreeNode<T>>();
+		if(root != null)
+			for(TreeNode<T> tn : getTraversalList(OrderTraversal.PREFIX))
+				if(data == null ? tn.getData() == null : data.equals(tn.getData()))
+					found.add(tn);
+		return found;
+	}
+	
+	/**
+	 * Get the nodes from the root down to a node, following the parent links
+	 * @param tn a node of the tree
+	 * @return the path, root first
+	 */
+	public List<TreeNode<T>> getPathFromRoot(TreeNode<T> tn){
+		List<TreeNode<T>> path = new ArrayList<TreeNode<T>>();
+		for(TreeNode<T> n = tn; n != null; n = n.getParent())
+			path.add(n);
+		Collections.reverse(path);
+		return path;
+	}
+	
+	/**
+	 * Get the deepest node that has both a and b in its sub tree
+	 * @return the common ancestor, null if the nodes are not in the same tree
+	 */
+	public TreeNode<T> lowestCommonAncestor(TreeNode<T> a, TreeNode<T> b){
+		int da = level(a), db = level(b);
+		for(; da > db; da--)
+			a = a.getParent();
+		for(; db > da; db--)
+			b = b.getParent();
+		while(a != b){
+			a = a.getParent();
+			b = b.getParent();
+		}
+		return a;
+	}
+	
+	private int level(TreeNode<T> tn){
+		int l = 0;
+		for(TreeNode<T> n = tn; n.getParent() != null; n = n.getParent())
+			l++;
+		return l;
 	}
 	
 	public long nodesCount(){
@@ -0,0 +1,348 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary storage for a {@link Tree}.
+ * <p>
+ * File layout (big endian ints):
+ * <pre>
+ * header     : magic "MTRE", version, n (number of nodes)
+ * structure  : for each node in prefix order : child count, sub tree size
+ * payloads   : the encoded data of each node, in prefix order
+ * offsets    : n+1 offsets of the payloads, relative to the payload section
+ * </pre>
+ * The sub tree sizes allow to jump from a child to its next sibling
+ * without reading the sub tree in between, so a {@link MappedTree} can
+ * open a file in constant time and decode only the nodes that are used.
+ * The offsets are at the end so that the writer can stream the payloads
+ * without knowing their size in advance.
+ */
+public class TreeFile {
+	static final int MAGIC = 0x4D545245; // "MTRE"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 12;
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("Test TreeFile");
+
+		TreeNode<String> ex = new TreeNode<String>("=");
+		ex.addChild(new TreeNode<String>("x"));
+		ex.addChild(new TreeNode<String>("+"));
+		ex.getChildAt(1).addChild(new TreeNode<String>("2"));
+		ex.getChildAt(1).addChild(new TreeNode<String>("*"));
+		ex.getChildAt(1).getChildAt(1).addChild(new TreeNode<String>("3"));
+		ex.getChildAt(1).getChildAt(1).addChild(new TreeNode<String>("4"));
+
+		File f = File.createTempFile("tree", ".bin");
+		f.deleteOnExit();
+		write(new Tree<String>(ex), STRING_CODEC, f);
+		MappedTree<String> mt = MappedTree.open(f, STRING_CODEC);
+		System.out.println(f.length() + " bytes for " + mt.nodesCount() + " nodes");
+		TreeNode<String> plus = mt.materialize(mt.getChildAt(mt.getRoot(), 1));
+		for(String s : plus.toPrettifiedStrings())
+			System.out.println(s);
+
+		//a big tree of ints
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		TreeNode<Integer> nodes[] = buildIntTree(count);
+		long t0 = System.nanoTime();
+		write(new Tree<Integer>(nodes[0]), INT_CODEC, f);
+		long t1 = System.nanoTime();
+		MappedTree<Integer> big = MappedTree.open(f, INT_CODEC);
+		long t2 = System.nanoTime();
+		int last = big.getChildAt(big.getRoot(), big.getChildCount(big.getRoot()) - 1);
+		int leaves = big.materialize(last).getNumberOfNodes();
+		long t3 = System.nanoTime();
+		System.out.println(String.format("%d nodes, %d bytes : write %d ms, open %d us, last sub tree (%d nodes) %d us",
+				big.nodesCount(), f.length(), (t1 - t0) / 1000000, (t2 - t1) / 1000, leaves, (t3 - t2) / 1000));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static TreeNode<Integer>[] buildIntTree(int count) {
+		TreeNode<Integer> nodes[] = (TreeNode<Integer>[]) new TreeNode<?>[count];
+		for(int i = 0; i < count; i++){
+			nodes[i] = new TreeNode<Integer>(i);
+			if(i > 0)
+				nodes[(i - 1) / 4].addChild(nodes[i]);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Write a tree to a file
+	 */
+	static <T> void write(Tree<T> tree, TreeCodec<T> codec, File f) throws IOException {
+		OutputStream os = new FileOutputStream(f);
+		try {
+			write(tree, codec, os);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Stream a tree in the binary format
+	 * @param tree the tree to write
+	 * @param codec the encoder for the node values
+	 * @param os the destination, not closed
+	 * @throws IOException
+	 */
+	static <T> void write(Tree<T> tree, TreeCodec<T> codec, OutputStream os) throws IOException {
+		List<TreeNode<T>> nodes = new ArrayList<TreeNode<T>>();
+		if(!tree.isEmpty())
+			prefix(tree.getRoot(), nodes);
+		int n = nodes.size();
+
+		//children are after their parent in prefix order: compute the sizes backward
+		int size[] = new int[n];
+		for(int i = n - 1; i >= 0; i--){
+			size[i] = 1;
+			int c = i + 1;
+			for(int k = 0; k < nodes.get(i).getChildren().size(); k++){
+				size[i] += size[c];
+				c += size[c];
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 65536));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(n);
+		for(int i = 0; i < n; i++){
+			out.writeInt(nodes.get(i).getChildren().size());
+			out.writeInt(size[i]);
+		}
+		int start = out.size();
+		int offsets[] = new int[n + 1];
+		for(int i = 0; i < n; i++){
+			offsets[i] = out.size() - start;
+			codec.encode(nodes.get(i).getData(), out);
+		}
+		offsets[n] = out.size() - start;
+		for(int off : offsets)
+			out.writeInt(off);
+		out.flush();
+	}
+
+	/**
+	 * iterative prefix walk, safe for deep trees
+	 */
+	private static <T> void prefix(TreeNode<T> root, List<TreeNode<T>> nodes) {
+		List<TreeNode<T>> stack = new ArrayList<TreeNode<T>>();
+		stack.add(root);
+		while(!stack.isEmpty()){
+			TreeNode<T> tn = stack.remove(stack.size() - 1);
+			nodes.add(tn);
+			List<TreeNode<T>> children = tn.getChildren();
+			for(int i = children.size() - 1; i >= 0; i--)
+				stack.add(children.get(i));
+		}
+	}
+
+	/**
+	 * Codec for String values (UTF-8), null is the single byte 0xFF that
+	 * never occurs in UTF-8
+	 */
+	static final TreeCodec<String> STRING_CODEC = new TreeCodec<String>() {
+		public void encode(String val, DataOutputStream out) throws IOException {
+			if(val == null)
+				out.write(0xFF);
+			else
+				out.write(val.getBytes(StandardCharsets.UTF_8));
+		}
+
+		public String decode(ByteBuffer buf, int offset, int length) {
+			if(length == 1 && buf.get(offset) == (byte) 0xFF)
+				return null;
+			byte b[] = new byte[length];
+			for(int i = 0; i < length; i++)
+				b[i] = buf.get(offset + i);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+	};
+
+	/**
+	 * Codec for Integer values (4 bytes), null is an empty value
+	 */
+	static final TreeCodec<Integer> INT_CODEC = new TreeCodec<Integer>() {
+		public void encode(Integer val, DataOutputStream out) throws IOException {
+			if(val != null)
+				out.writeInt(val);
+		}
+
+		public Integer decode(ByteBuffer buf, int offset, int length) {
+			if(length == 0)
+				return null;
+			return buf.getInt(offset);
+		}
+	};
+}
+
+/**
+ * Encoder / decoder of the node values of a {@link TreeFile}
+ */
+interface TreeCodec<T> {
+	/**
+	 * Write a value, its length is deduced from the offsets table
+	 */
+	void encode(T val, DataOutputStream out) throws IOException;
+
+	/**
+	 * Read back a value
+	 * @param buf the payload section
+	 * @param offset the start of the value in buf
+	 * @param length the number of bytes written by encode()
+	 */
+	T decode(ByteBuffer buf, int offset, int length);
+}
+
+/**
+ * Read only view of a {@link TreeFile} mapped in memory.
+ * <p>
+ * Nodes are identified by their prefix order number, the root is 0.
+ * Nothing is decoded when opening: getData() decodes a single value
+ * and materialize() builds the TreeNode objects of a single sub tree.
+ */
+class MappedTree<T> {
+	private final ByteBuffer structure;
+	private final ByteBuffer payloads;
+	private final ByteBuffer offsets;
+	private final TreeCodec<T> codec;
+	private final int n;
+
+	private MappedTree(MappedByteBuffer buf, TreeCodec<T> codec) throws IOException {
+		this.codec = codec;
+		if(buf.capacity() < TreeFile.HEADER_SIZE || buf.getInt(0) != TreeFile.MAGIC)
+			throw new IOException("not a tree file");
+		if(buf.getInt(4) != TreeFile.VERSION)
+			throw new IOException("unsupported tree file version " + buf.getInt(4));
+		n = buf.getInt(8);
+		//in long : a corrupt count must not overflow into a valid layout
+		if(n < 0 || TreeFile.HEADER_SIZE + 8L * n + 4L * (n + 1) > buf.capacity())
+			throw new IOException("truncated tree file");
+		int payloadStart = TreeFile.HEADER_SIZE + 8 * n;
+		int offsetsStart = buf.capacity() - 4 * (n + 1);
+		structure = slice(buf, TreeFile.HEADER_SIZE, payloadStart);
+		payloads = slice(buf, payloadStart, offsetsStart);
+		offsets = slice(buf, offsetsStart, buf.capacity());
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int from, int to) {
+		ByteBuffer dup = buf.duplicate();
+		dup.position(from);
+		dup.limit(to);
+		return dup.slice();
+	}
+
+	/**
+	 * Map a tree file in memory
+	 */
+	static <T> MappedTree<T> open(File f, TreeCodec<T> codec) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			//the mapping stays valid after the channel is closed
+			return new MappedTree<T>(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), codec);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public boolean isEmpty() {
+		return n == 0;
+	}
+
+	public long nodesCount() {
+		return n;
+	}
+
+	public int getRoot() {
+		return 0;
+	}
+
+	public int getChildCount(int node) {
+		return structure.getInt(8 * node);
+	}
+
+	/**
+	 * @return the number of nodes in the sub tree of node
+	 */
+	public int getNumberOfNodes(int node) {
+		return structure.getInt(8 * node + 4);
+	}
+
+	/**
+	 * the first child follows its parent, each next sibling follows the
+	 * sub tree of the previous one
+	 */
+	public int getChildAt(int node, int index) {
+		if(index < 0 || index >= getChildCount(node))
+			throw new IndexOutOfBoundsException("child " + index + " of node " + node);
+		int c = node + 1;
+		for(int i = 0; i < index; i++)
+			c += getNumberOfNodes(c);
+		return c;
+	}
+
+	/**
+	 * decode the value of a single node
+	 */
+	public T getData(int node) {
+		int off = offsets.getInt(4 * node);
+		return codec.decode(payloads, off, offsets.getInt(4 * node + 4) - off);
+	}
+
+	/**
+	 * Build the TreeNode objects of a sub tree. The nodes of a sub tree
+	 * are contiguous in prefix order, so they are read in sequence with
+	 * an explicit stack of the parents that still wait for children :
+	 * safe for deep trees.
+	 */
+	public TreeNode<T> materialize(int node) {
+		List<TreeNode<T>> parents = new ArrayList<TreeNode<T>>();
+		int pending[] = new int[16];	// children still expected by each parent
+		TreeNode<T> root = null;
+		int end = node + getNumberOfNodes(node);
+		for(int c = node; c < end; c++){
+			TreeNode<T> tn = new TreeNode<T>(getData(c));
+			int top = parents.size() - 1;
+			if(top < 0)
+				root = tn;
+			else {
+				parents.get(top).addChild(tn);
+				pending[top]--;
+			}
+			while(top >= 0 && pending[top] == 0)
+				parents.remove(top--);
+			int count = getChildCount(c);
+			if(count > 0){
+				if(++top == pending.length)
+					pending = Arrays.copyOf(pending, 2 * top);
+				pending[top] = count;
+				parents.add(tn);
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Load the whole tree
+	 */
+	public Tree<T> toTree() {
+		if(isEmpty())
+			return new Tree<T>();
+		return new Tree<T>(materialize(0));
+	}
+}
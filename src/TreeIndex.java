@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the nodes of a {@link Tree} by their data.
+ * <p>
+ * The index is kept up to date by the TreeNode mutators
+ * (addChild, removeChildAt, setChildren, removeChildren, setData)
+ * as long as the nodes are attached to the indexed tree.
+ * Several nodes can share the same data, they are kept by identity.
+ */
+class TreeIndex<T> {
+	private Map<T, Set<TreeNode<T>>> nodes = new HashMap<T, Set<TreeNode<T>>>();
+	private int size;
+
+	void add(TreeNode<T> tn) {
+		Set<TreeNode<T>> set = nodes.get(tn.getData());
+		if(set == null){
+			set = Collections.newSetFromMap(new IdentityHashMap<TreeNode<T>, Boolean>());
+			nodes.put(tn.getData(), set);
+		}
+		if(set.add(tn))
+			size++;
+	}
+
+	void remove(TreeNode<T> tn) {
+		Set<TreeNode<T>> set = nodes.get(tn.getData());
+		if(set != null && set.remove(tn)){
+			size--;
+			if(set.isEmpty())
+				nodes.remove(tn.getData());
+		}
+	}
+
+	/**
+	 * @return one of the nodes holding data, null if none
+	 */
+	TreeNode<T> find(T data) {
+		Set<TreeNode<T>> set = nodes.get(data);
+		if(set == null)
+			return null;
+		return set.iterator().next();
+	}
+
+	/**
+	 * @return all the nodes holding data (in no particular order)
+	 */
+	List<TreeNode<T>> findAll(T data) {
+		Set<TreeNode<T>> set = nodes.get(data);
+		if(set == null)
+			return new ArrayList<TreeNode<T>>();
+		return new ArrayList<TreeNode<T>>(set);
+	}
+
+	boolean contains(T data) {
+		return nodes.containsKey(data);
+	}
+
+	/**
+	 * @return the number of indexed nodes
+	 */
+	int size() {
+		return size;
+	}
+}
@@ -8,6 +8,7 @@ public class TreeNode<T> {
 	protected List<TreeNode<T>> children;
 	protected TreeNode<T> parent;
 	protected T data;
+	protected TreeIndex<T> labelIndex;	// optional index of the owning Tree
 
 	/**
 	 * default TreeNode constructor
@@ -41,7 +42,11 @@ public class TreeNode<T> {
 	 * @param val the value to store in the node
 	 */
 	void setData(T val){
+		if(labelIndex != null)
+			labelIndex.remove(this);
 		data = val;
+		if(labelIndex != null)
+			labelIndex.add(this);
 	}
 	
 	/**
@@ -67,6 +72,7 @@ public class TreeNode<T> {
 	void addChild(TreeNode<T> tn){
 		children.add(tn);
 		tn.setParent(this);
+		tn.setLabelIndex(labelIndex);
 	}
 	
 	/**
@@ -74,9 +80,16 @@ public class TreeNode<T> {
 	 * @param newChildren a list of childs
 	 */
 	void setChildren(List<TreeNode<T>> newChildren){
+		//detach the old childs without clearing their list, the caller may still hold it
+		for(TreeNode<T> tn : children){
+			tn.setParent(null);
+			tn.setLabelIndex(null);
+		}
 		children = newChildren;
-		for(TreeNode<T> tn : children)
+		for(TreeNode<T> tn : children){
 			tn.setParent(this);
+			tn.setLabelIndex(labelIndex);
+		}
 	}
 	
 	TreeNode<T> getChildAt(int index){
@@ -93,16 +106,39 @@ public class TreeNode<T> {
 	 * @return the removed child
 	 */
 	TreeNode<T> removeChildAt(int index){
-		return children.remove(index);
+		TreeNode<T> tn = children.remove(index);
+		tn.setParent(null);
+		tn.setLabelIndex(null);
+		return tn;
 	}
 	
 	/**
 	 * Delete all the children
 	 */
 	void removeChildren(){
+		for(TreeNode<T> tn : children){
+			tn.setParent(null);
+			tn.setLabelIndex(null);
+		}
 		children.clear();
 	}
 	
+	/**
+	 * Attach the sub tree to a label index (or detach it with null)
+	 * @param idx the index of the owning tree
+	 */
+	void setLabelIndex(TreeIndex<T> idx){
+		if(labelIndex == idx)
+			return;
+		if(labelIndex != null)
+			labelIndex.remove(this);
+		labelIndex = idx;
+		if(labelIndex != null)
+			labelIndex.add(this);
+		for(TreeNode<T> tn : children)
+			tn.setLabelIndex(idx);
+	}
+	
 	/**
 	 * Return a prettified representation of a Node 
 	 * and its children (if any)
@@ -298,4 +334,11 @@ public class TreeNode<T> {
 				return true;
 		return false;
 	}
+	
+	/**
+	 * consistent with equals(): only the data is hashed
+	 */
+	public int hashCode(){
+		return data == null ? 0 : data.hashCode();
+	}
 }
@@ -0,0 +1,286 @@
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative scheduler : time slices many VMs over a few threads.
+ * <p>
+ * Each submitted script runs in its own {@link VM} for at most a quantum
+ * of instructions (see {@link VM#run(long)}), then goes back to the end
+ * of the run queue, so that a long loop cannot hold a thread. A task can
+ * be paused, resumed or killed between two slices, and a task that uses
+ * more than its total fuel is killed.
+ */
+public class VMScheduler {
+	static final long DEFAULT_QUANTUM = 10000;
+
+	private final LinkedBlockingQueue<ScriptTask> queue = new LinkedBlockingQueue<ScriptTask>();
+	private final Set<ScriptTask> live = ConcurrentHashMap.newKeySet();	// tasks not finished yet
+	private final Thread workers[];
+	private final long quantum;
+	private volatile boolean running = true;
+
+	public static void main(String[] args) throws Error, InterruptedException {
+		VMScheduler sched = new VMScheduler(2, 1000);
+		MiniScript fac = MiniScript.compile("fac(n) { if (n == 0) return 1; else return n * fac(n-1); }");
+		MiniScript forever = MiniScript.compile("loop(n) { while (n > 0) n = n + 1; return n; }");
+
+		ScriptTask runaway = sched.submit(forever, 1, 50000000);
+		ScriptTask paused = sched.submit(forever, 1, Long.MAX_VALUE);
+		long t0 = System.nanoTime();
+		ScriptTask tasks[] = new ScriptTask[10000];
+		for(int i = 0; i < tasks.length; i++)
+			tasks[i] = sched.submit(fac, i % 10, Long.MAX_VALUE);
+		long sum = 0;
+		for(ScriptTask t : tasks)
+			sum += t.getFuture().join();
+		System.out.println(String.format("%d fac tasks in %d ms (checksum %d) next to 2 endless loops",
+				tasks.length, (System.nanoTime() - t0) / 1000000, sum));
+
+		paused.pause();
+		Thread.sleep(50);
+		System.out.println("paused task : " + paused.getState() + " after " + paused.getExecuted() + " instructions");
+		paused.kill();
+		try {
+			runaway.getFuture().join();
+		} catch (RuntimeException e) {
+			System.out.println("runaway task : " + runaway.getState() + " (" + e.getCause().getMessage() + ")");
+		}
+		sched.shutdown();
+	}
+
+	VMScheduler(int threads) {
+		this(threads, DEFAULT_QUANTUM);
+	}
+
+	/**
+	 * @param threads the number of worker threads
+	 * @param quantum the number of instructions of a time slice
+	 */
+	VMScheduler(int threads, long quantum) {
+		this.quantum = quantum;
+		workers = new Thread[threads];
+		for(int i = 0; i < threads; i++){
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "mini-vm-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Schedule a run of a compiled script
+	 * @param script the program
+	 * @param arg the function argument
+	 * @param maxFuel the total number of instructions allowed before the task is killed
+	 * @return the task, its future gives the result
+	 */
+	public ScriptTask submit(MiniScript script, int arg, long maxFuel) {
+		VM vm = script.newVM();
+		vm.start(arg);
+		return submit(vm, maxFuel);
+	}
+
+	/**
+	 * Schedule a VM prepared with {@link VM#start(int)}
+	 */
+	ScriptTask submit(VM vm, long maxFuel) {
+		ScriptTask task = new ScriptTask(this, vm, maxFuel);
+		live.add(task);
+		requeue(task);
+		return task;
+	}
+
+	/**
+	 * Put back a task in the run queue, or kill it if the scheduler was
+	 * shut down: checking running after the add closes the window where
+	 * shutdown() drains the queue between the check and the add
+	 */
+	void requeue(ScriptTask task) {
+		queue.add(task);
+		if(!running && queue.remove(task))
+			task.abort();
+	}
+
+	/**
+	 * Stop the workers, the queued and the paused tasks are killed
+	 */
+	public void shutdown() {
+		running = false;
+		for(Thread w : workers)
+			w.interrupt();
+		ScriptTask t;
+		while((t = queue.poll()) != null)
+			t.abort();
+		//a task that a worker pauses from now on sees running false
+		for(ScriptTask task : live)
+			task.abortPaused();
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Called by a task when its future completes
+	 */
+	void finished(ScriptTask task) {
+		live.remove(task);
+	}
+
+	private void work() {
+		while(running){
+			ScriptTask task;
+			try {
+				task = queue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(task != null && task.slice(quantum))
+				requeue(task);
+		}
+	}
+}
+
+/**
+ * A script run managed by a {@link VMScheduler}
+ */
+class ScriptTask {
+	enum State { READY, PAUSED, DONE, FAILED, KILLED }
+
+	private final VMScheduler scheduler;
+	private final VM vm;
+	private final long maxFuel;
+	private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+	private State state = State.READY;
+	private boolean pauseRequested;
+	private boolean killRequested;
+	private volatile long used;
+
+	ScriptTask(VMScheduler scheduler, VM vm, long maxFuel) {
+		this.scheduler = scheduler;
+		this.vm = vm;
+		this.maxFuel = maxFuel;
+	}
+
+	/**
+	 * Run one time slice, called by a worker thread only
+	 * @return true if the task must be queued again
+	 */
+	boolean slice(long quantum) {
+		synchronized (this) {
+			if(killRequested){
+				finish(State.KILLED, new Error("killed"));
+				return false;
+			}
+			if(pauseRequested){
+				if(scheduler.isRunning())
+					state = State.PAUSED;
+				else
+					finish(State.KILLED, new Error("killed"));
+				return false;
+			}
+		}
+		try {
+			long before = vm.getExecutedCount();
+			boolean halted = vm.run(Math.min(quantum, maxFuel - used));
+			used += vm.getExecutedCount() - before;
+			if(halted){
+				synchronized (this) {
+					state = State.DONE;
+				}
+				scheduler.finished(this);
+				future.complete(vm.getResult());
+				return false;
+			}
+			if(used >= maxFuel){
+				synchronized (this) {
+					finish(State.KILLED, new Error("out of fuel after " + used + " instructions"));
+				}
+				return false;
+			}
+			return true;
+		} catch (Error e) {
+			synchronized (this) {
+				finish(State.FAILED, e);
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			synchronized (this) {
+				finish(State.FAILED, new Error("stack overflow"));
+			}
+		} catch (ArithmeticException e) {
+			synchronized (this) {
+				finish(State.FAILED, new Error("division by zero"));
+			}
+		}
+		return false;
+	}
+
+	private void finish(State s, Error e) {
+		state = s;
+		scheduler.finished(this);
+		future.completeExceptionally(e);
+	}
+
+	/**
+	 * Stop the task at the end of its current slice
+	 */
+	public synchronized void pause() {
+		if(state == State.READY)
+			pauseRequested = true;
+	}
+
+	public synchronized void resume() {
+		pauseRequested = false;
+		if(state == State.PAUSED){
+			state = State.READY;
+			scheduler.requeue(this);
+		}
+	}
+
+	/**
+	 * Abort the task, its future fails
+	 */
+	public synchronized void kill() {
+		if(state == State.PAUSED)
+			finish(State.KILLED, new Error("killed"));
+		else if(state == State.READY)
+			killRequested = true;
+	}
+
+	/**
+	 * Kill the task right now, the caller must be sure that no worker runs it
+	 */
+	synchronized void abort() {
+		if(state == State.READY || state == State.PAUSED)
+			finish(State.KILLED, new Error("killed"));
+	}
+
+	/**
+	 * Kill the task if it is paused, at shutdown
+	 */
+	synchronized void abortPaused() {
+		if(state == State.PAUSED)
+			finish(State.KILLED, new Error("killed"));
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the number of instructions executed so far
+	 */
+	public long getExecuted() {
+		return used;
+	}
+
+	public CompletableFuture<Integer> getFuture() {
+		return future;
+	}
+}
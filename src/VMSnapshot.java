@@ -0,0 +1,167 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Snapshot of a paused {@link VM}, for warm restarts.
+ * <p>
+ * File layout (big endian ints):
+ * <pre>
+ * header : magic "MVMS", version
+ * code   : the program as written by MiniScript.save : magic "MVC1", frame size, code length, code
+ * state  : stack size, ip, sp, fp, halted, call depth, calls, deepest call, highest sp, executed (long)
+ * stack  : the sp live slots
+ * </pre>
+ * Only the live part of the stack is written. A VM can be saved between
+ * two calls of {@link VM#run(long)}, when a budget preempted it.
+ * {@link #open} maps the file and decodes the code once, then each
+ * {@link #newVM()} copies the stack slice out of the mapping with a bulk
+ * read, so a precomputed state can be cloned into many workers. The file
+ * is renamed into place once written, so a reader never sees a partial
+ * snapshot.
+ */
+public class VMSnapshot {
+	static final int MAGIC = 0x4D564D53; // "MVMS"
+	static final int VERSION = 1;
+
+	private final int code[];
+	private final int frameSize;
+	private final int stackSize;
+	private final int sp;
+	private final ByteBuffer state;
+
+	public static void main(String[] args) throws Error, IOException {
+		MiniScript warm = MiniScript.compile(
+				"warm(n) { i = 0; s = 0; while (i < 20000000) { s = s + i / 3; i = i + 1; } return s + n; }");
+		boolean metrics = MiniMetrics.isMetricsEnabled();
+		MiniMetrics.get().setEnabled(false);
+		long t0 = System.nanoTime();
+		int expected = warm.newVM().exec(5);
+		long t1 = System.nanoTime();
+
+		//pause the run near the end of the loop and save it
+		VM vm = warm.newVM();
+		vm.start(5);
+		vm.run(266000000);
+		File f = File.createTempFile("warm", ".mvs");
+		f.deleteOnExit();
+		write(vm, f);
+
+		long t2 = System.nanoTime();
+		VM restored = open(f).newVM();
+		restored.run(Long.MAX_VALUE);
+		long t3 = System.nanoTime();
+		System.out.println(String.format("snapshot of %d bytes after %d instructions", f.length(), vm.getExecutedCount()));
+		System.out.println(String.format("full run %d ms, restore and end of the run %d ms, results %d / %d",
+				(t1 - t0) / 1000000, (t3 - t2) / 1000000, expected, restored.getResult()));
+
+		long t4 = System.nanoTime();
+		VMSnapshot snap = open(f);
+		VM workers[] = new VM[1000];
+		for(int i = 0; i < workers.length; i++)
+			workers[i] = snap.newVM();
+		long t5 = System.nanoTime();
+		System.out.println(String.format("%d workers restored in %.2f ms", workers.length, (t5 - t4) / 1e6));
+		MiniMetrics.get().setEnabled(metrics);
+	}
+
+	private VMSnapshot(int code[], int frameSize, int stackSize, int sp, ByteBuffer state) {
+		this.code = code;
+		this.frameSize = frameSize;
+		this.stackSize = stackSize;
+		this.sp = sp;
+		this.state = state;
+	}
+
+	/**
+	 * Save a VM that is not running
+	 * @param vm the VM, left unchanged
+	 * @param f the snapshot file, replaced if it exists
+	 * @throws IOException
+	 */
+	static void write(VM vm, File f) throws IOException {
+		int code[] = vm.getCode();
+		ByteBuffer buf = ByteBuffer.allocate(4 * 5 + 4 * code.length + vm.getStateSize());
+		buf.putInt(MAGIC).putInt(VERSION);
+		buf.putInt(MiniScript.MAGIC).putInt(vm.getFrameSize()).putInt(code.length);
+		buf.asIntBuffer().put(code);
+		buf.position(buf.position() + 4 * code.length);
+		vm.saveState(buf);
+		buf.flip();
+
+		File dir = f.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(f.getName(), ".tmp", dir);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel ch = out.getChannel();
+			while (buf.hasRemaining())
+				ch.write(buf);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Map a snapshot file in memory and check it
+	 * @throws IOException if the file is not a valid snapshot
+	 */
+	static VMSnapshot open(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		MappedByteBuffer buf;
+		try {
+			FileChannel ch = raf.getChannel();
+			//the mapping stays valid after the channel is closed
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			raf.close();
+		}
+		try {
+			if(buf.getInt() != MAGIC)
+				throw new IOException("not a VM snapshot");
+			if(buf.getInt() != VERSION)
+				throw new IOException("unsupported VM snapshot version " + buf.getInt(4));
+			if(buf.getInt() != MiniScript.MAGIC)
+				throw new IOException("not a compiled Mini program");
+			int frameSize = buf.getInt();
+			int code[] = new int[buf.getInt()];
+			buf.asIntBuffer().get(code);
+			buf.position(buf.position() + 4 * code.length);
+
+			ByteBuffer state = buf.slice();
+			int stackSize = state.getInt(0), ip = state.getInt(4), sp = state.getInt(8), fp = state.getInt(12);
+			if(ip < 0 || ip >= code.length || sp < 0 || sp > stackSize || fp < 0 || fp > sp
+					|| state.capacity() != 9 * 4 + 8 + 4 * sp)
+				throw new IOException("corrupt VM snapshot");
+			return new VMSnapshot(code, frameSize, stackSize, sp, state);
+		} catch (RuntimeException e) {
+			//BufferUnderflowException, NegativeArraySizeException...
+			throw new IOException("truncated VM snapshot");
+		}
+	}
+
+	/**
+	 * @return a VM with the saved stack size that goes on with the saved run
+	 */
+	VM newVM() {
+		return newVM(stackSize);
+	}
+
+	/**
+	 * @param stackMax the stack size of the new VM, at least the saved sp
+	 * @return a VM that goes on with the saved run at its next run()
+	 */
+	VM newVM(int stackMax) {
+		if(stackMax < sp)
+			throw new IllegalArgumentException("stack of " + stackMax + " for " + sp + " live slots");
+		VM vm = new VM(code, frameSize, stackMax);
+		vm.restoreState(state.duplicate());
+		return vm;
+	}
+}